@@ -0,0 +1,387 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.mastfrog.acteur.Deferral.Resumer;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.AttributeKey;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import java.util.function.Supplier;
+
+/**
+ * Admission control for routes with a priority: a fixed number of requests
+ * may run their handlers at once, and a larger number may have work
+ * outstanding once their handlers have returned - a future which has not
+ * completed, or a proxied, batch, event stream or websocket route which has
+ * not yet started its response. Past either limit, requests are queued per
+ * priority class and admitted highest priority first, or shed with
+ * <code>503 Service Unavailable</code> when their class's queue is full or
+ * their deadline passes while they wait.
+ * <p>
+ * Active once any route has a priority, or <code>maxConcurrentRequests()</code>
+ * has been called. The snapshot is a Map, so it can be returned directly from
+ * a handler:
+ * <pre>
+ * path("_admission", () -&gt; {
+ *     priority(Priority.HIGH);
+ *     get(app.admission()::snapshot);
+ * });
+ * </pre>
+ *
+ * @author Tim Boudreau
+ */
+public final class Admission {
+
+    private static final AttributeKey<Ticket> AWAITING_RESPONSE = AttributeKey.valueOf("pectin-admission");
+    private final Map<Priority, ArrayDeque<Ticket>> queues = new EnumMap<>(Priority.class);
+    private final Map<Priority, ClassStats> stats = new EnumMap<>(Priority.class);
+    private int permits;
+    private int pendingPermits;
+    private int inUse;
+    private int pending;
+
+    Admission(int permits) {
+        this.permits = permits;
+        this.pendingPermits = permits * 128;
+        for (Priority p : Priority.values()) {
+            queues.put(p, new ArrayDeque<>());
+            stats.put(p, new ClassStats());
+        }
+        stats.get(Priority.HIGH).maxQueued = 1024;
+        stats.get(Priority.NORMAL).maxQueued = 256;
+        stats.get(Priority.LOW).maxQueued = 32;
+    }
+
+    synchronized void permits(int permits) {
+        this.permits = permits;
+    }
+
+    synchronized void pendingPermits(int pendingPermits) {
+        this.pendingPermits = pendingPermits;
+    }
+
+    synchronized void maxQueued(Priority priority, int max) {
+        stats.get(priority).maxQueued = max;
+    }
+
+    private static int limit(Priority priority, int max) {
+        // Leave headroom so low priority work cannot starve the rest
+        return priority == Priority.LOW ? Math.max(1, max - max / 4) : max;
+    }
+
+    private boolean hasRoom(Priority priority) {
+        return inUse < limit(priority, permits) && pending < limit(priority, pendingPermits);
+    }
+
+    /**
+     * Ask to run a request. The returned ticket is either admitted, queued
+     * (in which case the deferral supplier was called, and the chain will be
+     * resumed once it is admitted or its deadline passes) or shed.
+     */
+    Ticket admit(Priority priority, Channel channel, RequestTimings timings, Deadline deadline, Supplier<Resumer> deferral) {
+        Ticket ticket = new Ticket(priority, channel, timings);
+        synchronized (this) {
+            ClassStats st = stats.get(priority);
+            ArrayDeque<Ticket> queue = queues.get(priority);
+            if (hasRoom(priority) && queue.isEmpty()) {
+                inUse++;
+                ticket.state = Ticket.ADMITTED;
+                st.admitted++;
+            } else if (queue.size() >= st.maxQueued) {
+                ticket.state = Ticket.SHED;
+                st.shed++;
+                return ticket;
+            } else {
+                ticket.resumer = deferral.get();
+                ticket.state = Ticket.QUEUED;
+                // Before the ticket is visible in the queue - once it is, a
+                // release on another thread may resume it at any moment
+                if (timings != null) {
+                    timings.begin(RequestTimings.QUEUE);
+                }
+                if (deadline.isBounded()) {
+                    ticket.expiry = channel.eventLoop().schedule(ticket::expire, deadline.remainingNanos(), NANOSECONDS);
+                }
+                queue.add(ticket);
+            }
+        }
+        // A client which gives up while queued or running gives back its place
+        channel.closeFuture().addListener(ticket);
+        return ticket;
+    }
+
+    private void release(Ticket ticket) {
+        Ticket next;
+        synchronized (this) {
+            switch (ticket.state) {
+                case Ticket.QUEUED:
+                    queues.get(ticket.priority).remove(ticket);
+                    break;
+                case Ticket.ADMITTED:
+                    inUse--;
+                    break;
+                case Ticket.PENDING:
+                    pending--;
+                    break;
+                default:
+                    return;
+            }
+            ticket.state = Ticket.DONE;
+            next = next();
+        }
+        ticket.channel.closeFuture().removeListener(ticket);
+        if (ticket.expiry != null) {
+            ticket.expiry.cancel(false);
+        }
+        resume(next);
+    }
+
+    /**
+     * Move an admitted ticket from the handler limit to the limit on
+     * outstanding work, letting in another request if that makes room.
+     */
+    private void toPending(Ticket ticket) {
+        Ticket next;
+        synchronized (this) {
+            if (ticket.state != Ticket.ADMITTED) {
+                return;
+            }
+            inUse--;
+            pending++;
+            ticket.state = Ticket.PENDING;
+            next = next();
+        }
+        resume(next);
+    }
+
+    private void expire(Ticket ticket) {
+        synchronized (this) {
+            if (ticket.state != Ticket.QUEUED) {
+                return;
+            }
+            queues.get(ticket.priority).remove(ticket);
+            ticket.state = Ticket.EXPIRED;
+            stats.get(ticket.priority).expired++;
+        }
+        ticket.channel.closeFuture().removeListener(ticket);
+        resume(ticket);
+    }
+
+    private Ticket next() {
+        assert Thread.holdsLock(this);
+        for (Priority p : Priority.values()) {
+            ArrayDeque<Ticket> queue = queues.get(p);
+            if (!queue.isEmpty() && hasRoom(p)) {
+                Ticket next = queue.poll();
+                inUse++;
+                next.state = Ticket.ADMITTED;
+                ClassStats st = stats.get(p);
+                st.admitted++;
+                long waited = System.nanoTime() - next.created;
+                st.totalWaitNanos += waited;
+                st.maxWaitNanos = Math.max(st.maxWaitNanos, waited);
+                st.waited++;
+                return next;
+            }
+        }
+        return null;
+    }
+
+    private static void resume(Ticket next) {
+        if (next != null) {
+            if (next.expiry != null) {
+                next.expiry.cancel(false);
+            }
+            if (next.timings != null) {
+                next.timings.end();
+            }
+            next.resumer.resume();
+        }
+    }
+
+    /**
+     * Get the number of requests waiting in a priority class.
+     *
+     * @param priority The class
+     * @return The queue depth
+     */
+    public synchronized int queueDepth(Priority priority) {
+        return queues.get(priority).size();
+    }
+
+    /**
+     * Get the average time requests in a priority class which had to queue
+     * spent waiting.
+     *
+     * @param priority The class
+     * @return The average wait in milliseconds
+     */
+    public synchronized double averageWaitMillis(Priority priority) {
+        ClassStats st = stats.get(priority);
+        return st.waited == 0 ? 0 : st.totalWaitNanos / (st.waited * 1000000D);
+    }
+
+    /**
+     * Get permit usage, and queue depth, wait times and admitted and shed
+     * counts for each priority class.
+     *
+     * @return A map
+     */
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("permits", permits);
+        result.put("inUse", inUse);
+        result.put("pendingPermits", pendingPermits);
+        result.put("pending", pending);
+        for (Priority p : Priority.values()) {
+            ClassStats st = stats.get(p);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("queued", queues.get(p).size());
+            m.put("maxQueued", st.maxQueued);
+            m.put("admitted", st.admitted);
+            m.put("shed", st.shed);
+            m.put("expired", st.expired);
+            m.put("waited", st.waited);
+            m.put("averageWaitMillis", averageWaitMillis(p));
+            m.put("maxWaitMillis", st.maxWaitNanos / 1000000D);
+            result.put(p.name().toLowerCase(Locale.ROOT), m);
+        }
+        return result;
+    }
+
+    private static final class ClassStats {
+
+        int maxQueued;
+        long admitted;
+        long shed;
+        long expired;
+        long waited;
+        long totalWaitNanos;
+        long maxWaitNanos;
+    }
+
+    /**
+     * One request's place in line, or its permit once admitted; released
+     * exactly once, when its work is done or the client disconnects.
+     */
+    final class Ticket implements ChannelFutureListener {
+
+        static final int ADMITTED = 0;
+        static final int QUEUED = 1;
+        static final int SHED = 2;
+        static final int DONE = 3;
+        static final int PENDING = 4;
+        static final int EXPIRED = 5;
+        final Priority priority;
+        final Channel channel;
+        final RequestTimings timings;
+        final long created = System.nanoTime();
+        Resumer resumer;
+        ScheduledFuture<?> expiry;
+        int state;
+
+        Ticket(Priority priority, Channel channel, RequestTimings timings) {
+            this.priority = priority;
+            this.channel = channel;
+            this.timings = timings;
+        }
+
+        boolean isShed() {
+            // Only ever becomes SHED before admit() returns it
+            return state == SHED;
+        }
+
+        boolean isExpired() {
+            synchronized (Admission.this) {
+                return state == EXPIRED;
+            }
+        }
+
+        void release() {
+            Admission.this.release(this);
+        }
+
+        private void expire() {
+            Admission.this.expire(this);
+        }
+
+        /**
+         * The handler has returned a future; give back its handler permit
+         * now, and its place among outstanding work once the future is done.
+         */
+        void releaseWhenComplete(CompletableFuture<?> future) {
+            toPending(this);
+            future.whenComplete((r, thrown) -> release());
+        }
+
+        /**
+         * The handler has handed off to acteurs which will answer later; give
+         * back its handler permit now, and its place among outstanding work
+         * once the response head is written.
+         */
+        void releaseOnResponse() {
+            toPending(this);
+            Ticket prior = channel.attr(AWAITING_RESPONSE).getAndSet(this);
+            if (prior != null) {
+                prior.release();
+            }
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            release();
+        }
+    }
+
+    /**
+     * Releases a ticket waiting on its response when the response head is
+     * written.
+     */
+    static final class ResponseStarted extends ChannelOutboundHandlerAdapter {
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse) {
+                Ticket ticket = ctx.channel().attr(AWAITING_RESPONSE).getAndSet(null);
+                if (ticket != null) {
+                    ticket.release();
+                }
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+}
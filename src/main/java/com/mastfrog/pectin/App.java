@@ -23,8 +23,16 @@
  */
 package com.mastfrog.pectin;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.net.MediaType;
 import com.google.inject.Binder;
+import com.google.inject.Key;
 import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
 import com.mastfrog.acteur.Acteur;
 import com.mastfrog.acteur.Event;
@@ -38,6 +46,7 @@ import static com.mastfrog.acteur.headers.Method.DELETE;
 import static com.mastfrog.acteur.headers.Method.GET;
 import static com.mastfrog.acteur.headers.Method.POST;
 import static com.mastfrog.acteur.headers.Method.PUT;
+import com.mastfrog.acteur.server.PipelineDecorator;
 import com.mastfrog.acteur.server.ServerModule;
 import com.mastfrog.acteur.util.HttpMethod;
 import com.mastfrog.acteur.util.RequestID;
@@ -52,6 +61,7 @@ import com.mastfrog.util.Checks;
 import com.mastfrog.util.Exceptions;
 import com.mastfrog.util.collections.CollectionUtils;
 import com.mastfrog.util.function.ThrowingBiFunction;
+import com.mastfrog.util.function.ThrowingConsumer;
 import com.mastfrog.util.function.ThrowingFunction;
 import com.mastfrog.util.function.ThrowingRunnable;
 import com.mastfrog.util.function.ThrowingSupplier;
@@ -59,13 +69,28 @@ import com.mastfrog.util.function.ThrowingTriFunction;
 import com.mastfrog.util.thread.NonThrowingAutoCloseable;
 import com.mastfrog.util.thread.ProtectedThreadLocal;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  *
@@ -73,6 +98,7 @@ import java.util.Map;
  */
 public class App {
 
+    private static final int WORKER_THREADS = 8;
     private static final ProtectedThreadLocal<App> APP = new ProtectedThreadLocal<>();
     private static final ProtectedThreadLocal<String> PATH = new ProtectedThreadLocal<>();
 
@@ -81,14 +107,30 @@ public class App {
                 return new HashMap<>();
             });
 
+    final Map<String, Duration> deadlineForPath = new HashMap<>();
+    final Map<String, Priority> priorityForPath = new HashMap<>();
+    final Admission admission = new Admission(WORKER_THREADS);
+    final Map<String, BodyLimits> bodyLimitsForPath = CollectionUtils.supplierMap(BodyLimits::new);
+
     String staticFiles;
     boolean logging;
+    boolean serverTiming;
+    boolean closeOnRejectedBody = true;
+    boolean admissionLimited;
+    boolean streamingRoutes;
     int port = 8080;
+    int listeners = 1;
+    Duration timeout;
 
     public static App create() {
         return new App();
     }
     private ServerControl ctrl;
+    private ReusePortListeners reusePortListeners;
+    private Dependencies deps;
+    private InProcessClient inProcess;
+    private ExecutorService handlerExecutor;
+    private final List<ReverseProxy.Upstream> upstreams = new CopyOnWriteArrayList<>();
 
     public App enableStaticFiles(String path) {
         staticFiles = path;
@@ -100,11 +142,172 @@ public class App {
         return this;
     }
 
+    /**
+     * Determine whether the connection is closed after refusing a request
+     * whose body breaks its route's limits (the default), or kept open, with
+     * the rest of the refused body read and discarded. Connections whose
+     * request expected <code>100 Continue</code> are kept open either way,
+     * since no body was sent.
+     *
+     * @param close Whether to close
+     * @return this
+     */
+    public App closeOnRejectedBody(boolean close) {
+        closeOnRejectedBody = close;
+        return this;
+    }
+
+    /**
+     * Limit how many requests may be running their handlers at once; the
+     * rest queue by priority. The default, once any route has a priority, is
+     * the number of worker threads.
+     *
+     * @param max The number of requests
+     * @return this
+     */
+    public App maxConcurrentRequests(int max) {
+        Checks.greaterThanZero("max", max);
+        admission.permits(max);
+        admissionLimited = true;
+        return this;
+    }
+
+    /**
+     * Limit how many requests may have work outstanding after their handlers
+     * return - an incomplete future, or a proxied, batch, event stream or
+     * websocket route which has not started its response - before new
+     * requests queue. The default is 128 per worker thread.
+     *
+     * @param max The number of requests
+     * @return this
+     */
+    public App maxPendingRequests(int max) {
+        Checks.greaterThanZero("max", max);
+        admission.pendingPermits(max);
+        admissionLimited = true;
+        return this;
+    }
+
+    /**
+     * Set how many requests of a priority class may wait for admission
+     * before more are shed with <code>503 Service Unavailable</code>.
+     *
+     * @param priority The priority class
+     * @param max The queue size, which may be zero
+     * @return this
+     */
+    public App maxQueued(Priority priority, int max) {
+        Checks.notNull("priority", priority);
+        Checks.nonNegative("max", max);
+        admission.maxQueued(priority, max);
+        return this;
+    }
+
+    /**
+     * Get the admission scheduler, for queue depth and wait time metrics.
+     *
+     * @return The scheduler
+     */
+    public Admission admission() {
+        return admission;
+    }
+
+    boolean admissionEnabled() {
+        return admissionLimited || !priorityForPath.isEmpty();
+    }
+
+    Priority priorityFor(String path) {
+        Priority result = priorityForPath.get(path);
+        return result == null ? Priority.NORMAL : result;
+    }
+
+    /**
+     * Add a <code>Server-Timing</code> header to responses, breaking down the
+     * time spent routing, in the handler, and waiting for any future it
+     * returned. The same phases are always available as Flight Recorder
+     * events when a recording is enabled for them.
+     *
+     * @return this
+     */
+    public App enableServerTiming() {
+        serverTiming = true;
+        return this;
+    }
+
+    /**
+     * Record sampled buffer leak reports tagged with the route responsible,
+     * and make allocator statistics available from
+     * <code>bufferDiagnostics()</code>. Raises Netty's leak detection level to
+     * ADVANCED if it is lower, which records where sampled buffers were
+     * touched. Call this before anything allocates a buffer.
+     *
+     * @return this
+     */
+    public App enableBufferDiagnostics() {
+        BufferDiagnostics.install();
+        return this;
+    }
+
+    public BufferDiagnostics bufferDiagnostics() {
+        return new BufferDiagnostics(this);
+    }
+
+    /**
+     * Accept batches of requests as a POST to <code>/_batch</code>: the body
+     * is a JSON array of objects with <code>method</code>, <code>path</code>
+     * and optional <code>body</code> properties, which are run in parallel
+     * against this app's routes. The response is newline-delimited JSON with
+     * one line per request, written as each completes, with the
+     * <code>index</code> of the request it answers, its <code>status</code>
+     * and <code>body</code>. At most 64 requests may be batched; larger
+     * batches, bodies which are not such an array, and unknown methods get
+     * <code>400 Bad Request</code>.
+     *
+     * @return this
+     */
+    public App enableBatch() {
+        methodsForPath.get(BatchActeur.PATH).put(POST, new Acteurs(BatchActeur.class));
+        return this;
+    }
+
     public App port(int port) {
         this.port = port;
         return this;
     }
 
+    /**
+     * Set the default deadline for requests; if a handler returns a
+     * CompletableFuture which has not completed by then, it is cancelled and
+     * the response is <code>504 Gateway Timeout</code>.
+     *
+     * @param timeout The timeout, or null for none
+     * @return this
+     */
+    public App timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    Duration deadlineFor(String path) {
+        Duration result = deadlineForPath.get(path);
+        return result == null ? timeout : result;
+    }
+
+    /**
+     * Bind the passed number of listeners to the same port using
+     * <code>SO_REUSEPORT</code>, so the kernel spreads incoming connections
+     * across them; each listener has its own event loop group, and all share
+     * the same routes. Requires the native epoll transport (Linux).
+     *
+     * @param listeners The number of listeners
+     * @return this
+     */
+    public App listeners(int listeners) {
+        Checks.greaterThanZero("listeners", listeners);
+        this.listeners = listeners;
+        return this;
+    }
+
     public void routes(ThrowingRunnable setupPaths) {
         try (NonThrowingAutoCloseable ac = APP.set(this)) {
             setupPaths.run();
@@ -126,6 +329,70 @@ public class App {
         }
     }
 
+    /**
+     * Set the deadline for all methods on the current path, overriding the
+     * app's default timeout.
+     *
+     * @param deadline The deadline
+     */
+    public static void deadline(Duration deadline) {
+        Checks.notNull("app", APP.get());
+        Checks.notNull("path", PATH.get());
+        Checks.notNull("deadline", deadline);
+        APP.get().deadlineForPath.put(PATH.get(), deadline);
+    }
+
+    /**
+     * Set the priority class of all methods on the current path, which
+     * decides the order requests are admitted in when the server is busy.
+     *
+     * @param priority The priority
+     */
+    public static void priority(Priority priority) {
+        Checks.notNull("app", APP.get());
+        Checks.notNull("path", PATH.get());
+        Checks.notNull("priority", priority);
+        APP.get().priorityForPath.put(PATH.get(), priority);
+    }
+
+    /**
+     * Refuse request bodies larger than the passed number of bytes on the
+     * current path with <code>413 Request Entity Too Large</code>, as soon
+     * as the Content-Length header or the bytes received so far show the
+     * body is too big, before it is buffered.
+     *
+     * @param bytes The maximum body size
+     */
+    public static void maxBodySize(long bytes) {
+        Checks.notNull("app", APP.get());
+        Checks.notNull("path", PATH.get());
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative body size " + bytes);
+        }
+        APP.get().bodyLimitsForPath.get(PATH.get()).maxBytes = bytes;
+    }
+
+    /**
+     * Refuse requests with a body on the current path with
+     * <code>415 Unsupported Media Type</code> unless the body's content type
+     * is one of those passed, e.g. <code>accepts("application/json")</code>;
+     * parameters such as charset are ignored, and <code>text/*</code>
+     * matches any text type.
+     *
+     * @param contentTypes The content types to accept
+     */
+    public static void accepts(String... contentTypes) {
+        Checks.notNull("app", APP.get());
+        Checks.notNull("path", PATH.get());
+        if (contentTypes.length == 0) {
+            throw new IllegalArgumentException("No content types");
+        }
+        BodyLimits limits = APP.get().bodyLimitsForPath.get(PATH.get());
+        for (String type : contentTypes) {
+            limits.contentTypes.add(BodyLimits.baseType(type));
+        }
+    }
+
     private static App add(HttpMethod method, Appliable handler) {
         Checks.notNull("app", APP.get());
         Checks.notNull("path", PATH.get());
@@ -166,6 +433,58 @@ public class App {
         add(GET, new Acteurs(acteurs));
     }
 
+    public static void get(IntPathParameter method) {
+        add(GET, new TypedParameters.IntPath(PATH.get(), method));
+    }
+
+    public static void get(LongPathParameter method) {
+        add(GET, new TypedParameters.LongPath(PATH.get(), method));
+    }
+
+    /**
+     * Handle GET with the path parameter converted to the passed type, which
+     * may be a primitive wrapper, String, UUID, an enum, or any type with a
+     * static <code>valueOf(String)</code>, <code>parse(String)</code>,
+     * <code>fromString(String)</code> or <code>of(String)</code> method, or a
+     * String constructor. Unparseable values get a <code>400 Bad
+     * Request</code>.
+     *
+     * @param <T> The type
+     * @param method The handler
+     * @param type The type
+     */
+    public static <T> void get(TypedPathParameter<T> method, Class<T> type) {
+        add(GET, new TypedParameters.TypedPath<>(PATH.get(), method, type));
+    }
+
+    /**
+     * Handle GET with the named query parameter as an int; if it is missing
+     * or unparseable the response is <code>400 Bad Request</code>.
+     *
+     * @param method The handler
+     * @param name The query parameter name
+     */
+    public static void get(IntQueryParameter method, String name) {
+        add(GET, new TypedParameters.IntQuery(name, method));
+    }
+
+    public static void get(LongQueryParameter method, String name) {
+        add(GET, new TypedParameters.LongQuery(name, method));
+    }
+
+    /**
+     * Handle GET with the named query parameter converted to the passed type
+     * (see above for what types are supported), or null if it is absent.
+     *
+     * @param <T> The type
+     * @param method The handler
+     * @param name The query parameter name
+     * @param type The type
+     */
+    public static <T> void get(TypedQueryParameter<T> method, String name, Class<T> type) {
+        add(GET, new TypedParameters.TypedQuery<>(name, method, type));
+    }
+
     public static void delete(JustEvent method) {
         add(DELETE, method);
     }
@@ -190,6 +509,30 @@ public class App {
         add(DELETE, new Acteurs(acteurs));
     }
 
+    public static void delete(IntPathParameter method) {
+        add(DELETE, new TypedParameters.IntPath(PATH.get(), method));
+    }
+
+    public static void delete(LongPathParameter method) {
+        add(DELETE, new TypedParameters.LongPath(PATH.get(), method));
+    }
+
+    public static <T> void delete(TypedPathParameter<T> method, Class<T> type) {
+        add(DELETE, new TypedParameters.TypedPath<>(PATH.get(), method, type));
+    }
+
+    public static void delete(IntQueryParameter method, String name) {
+        add(DELETE, new TypedParameters.IntQuery(name, method));
+    }
+
+    public static void delete(LongQueryParameter method, String name) {
+        add(DELETE, new TypedParameters.LongQuery(name, method));
+    }
+
+    public static <T> void delete(TypedQueryParameter<T> method, String name, Class<T> type) {
+        add(DELETE, new TypedParameters.TypedQuery<>(name, method, type));
+    }
+
     public static void put(JustEvent method) {
         add(PUT, method);
     }
@@ -226,6 +569,34 @@ public class App {
         add(PUT, new Acteurs(acteurs));
     }
 
+    /**
+     * Handle PUT with the path parameter parsed as an int. There is no
+     * <code>put(TypedPathParameter, Class)</code>, since that signature
+     * already means binding the request body to a type; the same goes for
+     * POST and PATCH.
+     *
+     * @param method The handler
+     */
+    public static void put(IntPathParameter method) {
+        add(PUT, new TypedParameters.IntPath(PATH.get(), method));
+    }
+
+    public static void put(LongPathParameter method) {
+        add(PUT, new TypedParameters.LongPath(PATH.get(), method));
+    }
+
+    public static void put(IntQueryParameter method, String name) {
+        add(PUT, new TypedParameters.IntQuery(name, method));
+    }
+
+    public static void put(LongQueryParameter method, String name) {
+        add(PUT, new TypedParameters.LongQuery(name, method));
+    }
+
+    public static <T> void put(TypedQueryParameter<T> method, String name, Class<T> type) {
+        add(PUT, new TypedParameters.TypedQuery<>(name, method, type));
+    }
+
     public static void post(JustContent method) {
         add(POST, method);
     }
@@ -262,6 +633,59 @@ public class App {
         add(POST, new Acteurs(acteurs));
     }
 
+    public static void post(IntPathParameter method) {
+        add(POST, new TypedParameters.IntPath(PATH.get(), method));
+    }
+
+    public static void post(LongPathParameter method) {
+        add(POST, new TypedParameters.LongPath(PATH.get(), method));
+    }
+
+    public static void post(IntQueryParameter method, String name) {
+        add(POST, new TypedParameters.IntQuery(name, method));
+    }
+
+    public static void post(LongQueryParameter method, String name) {
+        add(POST, new TypedParameters.LongQuery(name, method));
+    }
+
+    public static <T> void post(TypedQueryParameter<T> method, String name, Class<T> type) {
+        add(POST, new TypedParameters.TypedQuery<>(name, method, type));
+    }
+
+    /**
+     * Accept a POST whose body is either newline-delimited JSON or a
+     * top-level JSON array, and pass each element to the passed consumer as
+     * it is parsed, without materializing the full list of objects. The body
+     * is parsed as it arrives, and is never buffered in full; reading pauses
+     * while the consumer is busy. The response is the number of elements
+     * processed, or <code>400 Bad Request</code> if an element cannot be
+     * parsed or bound, in which case earlier elements will already have been
+     * consumed.
+     *
+     * @param <T> The element type
+     * @param method The consumer
+     * @param type The element type
+     */
+    public static <T> void postEach(ThrowingConsumer<T> method, Class<T> type) {
+        add(POST, new EachTypedContent<>(type, method, null, 1)).streamingRoutes = true;
+    }
+
+    /**
+     * Accept a POST whose body is either newline-delimited JSON or a
+     * top-level JSON array, passing elements to the consumer in lists of
+     * up to <code>batchSize</code> elements as they are parsed.
+     *
+     * @param <T> The element type
+     * @param method The consumer
+     * @param type The element type
+     * @param batchSize The maximum number of elements per batch
+     */
+    public static <T> void postEach(ThrowingConsumer<List<T>> method, Class<T> type, int batchSize) {
+        Checks.greaterThanZero("batchSize", batchSize);
+        add(POST, new EachTypedContent<>(type, null, method, batchSize)).streamingRoutes = true;
+    }
+
     public static void patch(JustContent method) {
         add(PATCH, method);
     }
@@ -298,58 +722,148 @@ public class App {
         add(POST, new Acteurs(acteurs));
     }
 
+    public static void patch(IntPathParameter method) {
+        add(PATCH, new TypedParameters.IntPath(PATH.get(), method));
+    }
+
+    public static void patch(LongPathParameter method) {
+        add(PATCH, new TypedParameters.LongPath(PATH.get(), method));
+    }
+
+    public static void patch(IntQueryParameter method, String name) {
+        add(PATCH, new TypedParameters.IntQuery(name, method));
+    }
+
+    public static void patch(LongQueryParameter method, String name) {
+        add(PATCH, new TypedParameters.LongQuery(name, method));
+    }
+
+    public static <T> void patch(TypedQueryParameter<T> method, String name, Class<T> type) {
+        add(PATCH, new TypedParameters.TypedQuery<>(name, method, type));
+    }
+
+    /**
+     * Create a handler for a route which always returns the same value; the
+     * response body is encoded once, into a read-only direct buffer, and
+     * shared by every response until the value is replaced with
+     * <code>Constant.set()</code>. For example,
+     * <code>get(constant(versionInfo))</code>.
+     *
+     * @param value The value, which is rendered as JSON unless it is a
+     * String, <code>byte[]</code> or HttpResponseStatus
+     * @return A handler
+     */
+    public static Constant constant(Object value) {
+        return new Constant(value);
+    }
+
+    /**
+     * Serve server-sent events from the current path: a GET request opens a
+     * connection which receives messages published to the passed broadcaster.
+     *
+     * @param broadcaster The group to subscribe connections to
+     */
+    public static void sse(Broadcaster broadcaster) {
+        add(GET, new ServerSentEventsRoute(broadcaster));
+    }
+
+    /**
+     * Accept websocket connections on the current path, subscribing them to
+     * the passed broadcaster.
+     *
+     * @param broadcaster The group to subscribe connections to
+     */
+    public static void websocket(Broadcaster broadcaster) {
+        add(GET, new WebSocketRoute(broadcaster, null));
+    }
+
+    /**
+     * Accept websocket connections on the current path, subscribing them to
+     * the passed broadcaster, and passing text frames received from the client
+     * to the passed handler. A non-null return value is sent back to that
+     * client only, rendered as JSON unless it is a String.
+     *
+     * @param broadcaster The group to subscribe connections to
+     * @param onMessage Handles incoming text frames
+     */
+    public static void websocket(Broadcaster broadcaster, WebSocketMessage onMessage) {
+        Checks.notNull("onMessage", onMessage);
+        add(GET, new WebSocketRoute(broadcaster, onMessage));
+    }
+
+    /**
+     * Forward requests for the current path, with any method but HEAD and
+     * OPTIONS, to an upstream HTTP server, relaying the response as it
+     * arrives. The request URI is appended to the upstream URL's path, so
+     * <code>proxy("http://localhost:9000/api")</code> under
+     * <code>path("users/*")</code> forwards <code>/users/3</code> to
+     * <code>http://localhost:9000/api/users/3</code>. Up to 16 keep-alive
+     * connections per event loop are pooled.
+     *
+     * @param upstreamUrl An http:// URL
+     */
+    public static void proxy(String upstreamUrl) {
+        proxy(upstreamUrl, 16);
+    }
+
+    /**
+     * Forward requests for the current path to an upstream HTTP server,
+     * pooling up to the passed number of keep-alive connections per event
+     * loop.
+     *
+     * @param upstreamUrl An http:// URL
+     * @param maxConnections The pool size per event loop
+     */
+    public static void proxy(String upstreamUrl, int maxConnections) {
+        Checks.notNull("upstreamUrl", upstreamUrl);
+        Checks.greaterThanZero("maxConnections", maxConnections);
+        ProxyRoute route = new ProxyRoute(new ReverseProxy.Upstream(upstreamUrl, maxConnections));
+        for (HttpMethod method : new HttpMethod[]{GET, PUT, POST, DELETE, PATCH}) {
+            add(method, route);
+        }
+        App app = APP.get();
+        app.upstreams.add(route.upstream);
+        // Request bodies are relayed as they arrive, not aggregated
+        app.streamingRoutes = true;
+    }
+
     public App stop() throws InterruptedException {
+        // Pools close on their event loops, so before those go away
+        for (ReverseProxy.Upstream upstream : upstreams) {
+            upstream.close();
+        }
         if (ctrl != null) {
             ctrl.shutdown(true);
         }
+        if (reusePortListeners != null) {
+            reusePortListeners.shutdown();
+        }
+        synchronized (this) {
+            if (inProcess != null) {
+                inProcess.close();
+                inProcess = null;
+            }
+            if (handlerExecutor != null) {
+                handlerExecutor.shutdown();
+                handlerExecutor = null;
+            }
+            if (deps != null) {
+                deps.shutdown();
+                deps = null;
+            }
+        }
         return this;
     }
 
     public App start() {
         try {
-            SettingsBuilder sb = new SettingsBuilder()
-                    .add(ServerModule.PORT, port);
-            if (staticFiles != null) {
-                String sf = staticFiles;
-                if (sf.length() > 0 && sf.charAt(0) == '/') {
-                    sf = sf.substring(1);
-                }
-                if (sf.length() > 0 && sf.charAt(sf.length()-1) != '/') {
-                    sf += '/';
-                }
-                sf += "(.*)";
-                sb.add(ResourcesPage.SETTINGS_KEY_STATIC_RESOURCES_BASE_URL_PATH, sf);
+            Dependencies deps = dependencies();
+            if (listeners > 1) {
+                System.out.println("Starting " + listeners + " listeners on port " + port);
+                reusePortListeners = ReusePortListeners.start(listeners, port, pipelineFactory());
+                System.out.println("Started");
+                return this;
             }
-            Settings settings = sb.build();
-            ReentrantScope scope = new ReentrantScope();
-            Dependencies deps = Dependencies.builder().add(new ServerModule(scope, PectinActeurApplication.class, 8, 3, 2),
-                    new Module() {
-                public void configure(Binder binder) {
-                    binder.bind(App.class).toInstance(App.this);
-                    binder.bind(String[].class).annotatedWith(Names.named("paths")).toInstance(methodsForPath.keySet().toArray(new String[0]));
-                    binder.bind(PathPatterns.class).toInstance(new PathPatterns());
-                    if (App.this.staticFiles != null) {
-                        File dir = new File(".").getAbsoluteFile().toPath().normalize().toFile();
-                        System.out.println("Serving files from " + dir + " on " + App.this.staticFiles);
-                        binder.bind(File.class).toInstance(dir);
-                        binder.bind(StaticResources.class).to(DynamicFileResources.class);
-                        scope.bindTypes(binder, Resource.class);
-                    }
-                    if (!App.this.logging) {
-                        binder.bind(RequestLogger.class).toInstance(new RequestLogger() {
-                            @Override
-                            public void onBeforeEvent(RequestID rid, Event<?> event) {
-                                // do nothing
-                            }
-
-                            @Override
-                            public void onRespond(RequestID rid, Event<?> event, HttpResponseStatus status) {
-                                // do nothing
-                            }
-                        });
-                    }
-                }
-            }).add(settings).build();
             Thread t = new Thread(() -> {
                 ServerControl ctrl;
                 try {
@@ -369,6 +883,94 @@ public class App {
         }
     }
 
+    ChannelInitializer<SocketChannel> pipelineFactory() throws IOException {
+        return dependencies().getInjector().getInstance(Key.get(new TypeLiteral<ChannelInitializer<SocketChannel>>() {
+        }));
+    }
+
+    /**
+     * Get a client which sends requests through this app's routes and
+     * handlers in-process, with no socket; the app does not need to be
+     * started, but its routes must be set up before this is called.
+     *
+     * @return A client
+     */
+    public synchronized InProcessClient inProcess() {
+        if (inProcess == null) {
+            try {
+                inProcess = new InProcessClient(pipelineFactory());
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        }
+        return inProcess;
+    }
+
+    /**
+     * Threads which run handlers called from the event loop - postEach()
+     * consumers for streamed bodies, and websocket message handlers - so
+     * that a slow one never blocks it.
+     */
+    synchronized ExecutorService handlerExecutor() {
+        if (handlerExecutor == null) {
+            handlerExecutor = Executors.newFixedThreadPool(WORKER_THREADS, new DefaultThreadFactory("pectin-handler"));
+        }
+        return handlerExecutor;
+    }
+
+    synchronized Dependencies dependencies() throws IOException {
+        if (deps != null) {
+            return deps;
+        }
+        SettingsBuilder sb = new SettingsBuilder()
+                .add(ServerModule.PORT, port);
+        if (staticFiles != null) {
+            String sf = staticFiles;
+            if (sf.length() > 0 && sf.charAt(0) == '/') {
+                sf = sf.substring(1);
+            }
+            if (sf.length() > 0 && sf.charAt(sf.length()-1) != '/') {
+                sf += '/';
+            }
+            sf += "(.*)";
+            sb.add(ResourcesPage.SETTINGS_KEY_STATIC_RESOURCES_BASE_URL_PATH, sf);
+        }
+        Settings settings = sb.build();
+        ReentrantScope scope = new ReentrantScope();
+        deps = Dependencies.builder().add(new ServerModule(scope, PectinActeurApplication.class, WORKER_THREADS, 3, 2),
+                new Module() {
+            public void configure(Binder binder) {
+                binder.bind(App.class).toInstance(App.this);
+                binder.bind(String[].class).annotatedWith(Names.named("paths")).toInstance(methodsForPath.keySet().toArray(new String[0]));
+                binder.bind(PathPatterns.class).toInstance(new PathPatterns());
+                if (PipelineHooks.needed(App.this)) {
+                    binder.bind(PipelineDecorator.class).to(PipelineHooks.class);
+                }
+                if (App.this.staticFiles != null) {
+                    File dir = new File(".").getAbsoluteFile().toPath().normalize().toFile();
+                    System.out.println("Serving files from " + dir + " on " + App.this.staticFiles);
+                    binder.bind(File.class).toInstance(dir);
+                    binder.bind(StaticResources.class).to(DynamicFileResources.class);
+                    scope.bindTypes(binder, Resource.class);
+                }
+                if (!App.this.logging) {
+                    binder.bind(RequestLogger.class).toInstance(new RequestLogger() {
+                        @Override
+                        public void onBeforeEvent(RequestID rid, Event<?> event) {
+                            // do nothing
+                        }
+
+                        @Override
+                        public void onRespond(RequestID rid, Event<?> event, HttpResponseStatus status) {
+                            // do nothing
+                        }
+                    });
+                }
+            }
+        }).add(settings).build();
+        return deps;
+    }
+
     static final HttpMethod PATCH = new HttpMethod() {
         @Override
         public String name() {
@@ -385,14 +987,26 @@ public class App {
 
     }
 
+    /**
+     * The content buffer belongs to Pectin and is released when the request
+     * completes - retain or copy it to use it afterwards. Any ByteBuf returned
+     * by a handler also becomes Pectin's, and is released once written;
+     * returning the content buffer, or a slice of it, is safe.
+     */
     public interface EventAndContent extends ThrowingBiFunction<HttpEvent, ByteBuf, Object>, Appliable {
 
     }
 
+    /**
+     * The content buffer belongs to Pectin - see {@link EventAndContent}.
+     */
     public interface EventAndContentAndPathParameter extends ThrowingTriFunction<HttpEvent, ByteBuf, String, Object>, Appliable {
 
     }
 
+    /**
+     * The content buffer belongs to Pectin - see {@link EventAndContent}.
+     */
     public interface EventAndContentAndPathParameters extends ThrowingTriFunction<HttpEvent, ByteBuf, Map<String, String>, Object>, Appliable {
 
     }
@@ -401,6 +1015,9 @@ public class App {
 
     }
 
+    /**
+     * The content buffer belongs to Pectin - see {@link EventAndContent}.
+     */
     public interface JustContent extends ThrowingFunction<ByteBuf, Object>, Appliable {
 
     }
@@ -421,6 +1038,55 @@ public class App {
 
     }
 
+    /**
+     * Receives the path parameter parsed from the request URI as an int,
+     * without creating a String or boxing it.
+     */
+    public interface IntPathParameter {
+
+        Object apply(int value) throws Exception;
+    }
+
+    /**
+     * Receives the path parameter parsed from the request URI as a long.
+     * Since a method taking a long is also compatible with IntPathParameter,
+     * pass it as <code>(LongPathParameter) Foo::bar</code>.
+     */
+    public interface LongPathParameter {
+
+        Object apply(long value) throws Exception;
+    }
+
+    /**
+     * Receives the path parameter converted to a type; available for GET and
+     * DELETE, since for methods with a body, <code>(function, Class)</code>
+     * binds the body instead.
+     */
+    public interface TypedPathParameter<T> extends ThrowingFunction<T, Object> {
+
+    }
+
+    public interface IntQueryParameter {
+
+        Object apply(int value) throws Exception;
+    }
+
+    /**
+     * Receives a query parameter as a long - see {@link LongPathParameter}.
+     */
+    public interface LongQueryParameter {
+
+        Object apply(long value) throws Exception;
+    }
+
+    public interface TypedQueryParameter<T> extends ThrowingFunction<T, Object> {
+
+    }
+
+    public interface WebSocketMessage extends ThrowingFunction<String, Object> {
+
+    }
+
     public interface JustTypedContent<T> extends ThrowingFunction<T, Object>, Appliable {
 
         Class<T> type();
@@ -446,6 +1112,139 @@ public class App {
 
     }
 
+    static final class ServerSentEventsRoute extends Acteurs<Object> {
+
+        final Broadcaster broadcaster;
+
+        ServerSentEventsRoute(Broadcaster broadcaster) {
+            super(ServerPush.ServerSentEvents.class);
+            Checks.notNull("broadcaster", broadcaster);
+            this.broadcaster = broadcaster;
+        }
+    }
+
+    static final class WebSocketRoute extends Acteurs<Object> {
+
+        final Broadcaster broadcaster;
+        final WebSocketMessage onMessage;
+
+        WebSocketRoute(Broadcaster broadcaster, WebSocketMessage onMessage) {
+            super(ServerPush.WebSocketUpgrade.class);
+            Checks.notNull("broadcaster", broadcaster);
+            this.broadcaster = broadcaster;
+            this.onMessage = onMessage;
+        }
+    }
+
+    static final class ProxyRoute extends Acteurs<Object> {
+
+        final ReverseProxy.Upstream upstream;
+
+        ProxyRoute(ReverseProxy.Upstream upstream) {
+            super(ReverseProxy.ProxyActeur.class);
+            this.upstream = upstream;
+        }
+    }
+
+    /**
+     * A handler which returns a value encoded once and shared between
+     * requests; the value can be replaced at any time.
+     */
+    public static final class Constant implements JustRespond {
+
+        private volatile Encoded encoded;
+
+        Constant(Object value) {
+            encoded = new Encoded(value);
+        }
+
+        /**
+         * Replace the value; it will be encoded on the next request.
+         *
+         * @param value The new value
+         * @return this
+         */
+        public Constant set(Object value) {
+            encoded = new Encoded(value);
+            return this;
+        }
+
+        @Override
+        public Object get() {
+            return encoded.value;
+        }
+
+        @Override
+        public Object doApply(HttpEvent evt, Map<String, String> pathParameters, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            Encoded enc = encoded;
+            if (enc.value == null || enc.value instanceof HttpResponseStatus) {
+                return enc.value;
+            }
+            ByteBuf buf = enc.buffer;
+            if (buf == null) {
+                // Racing threads may both encode; either result is correct
+                buf = enc.buffer = encode(enc.value, deps.getInstance(ObjectMapper.class));
+            }
+            // The buffer is unreleasable, so the release after the response
+            // is written leaves it intact for the next request
+            return new Body(buf.retainedDuplicate(), enc.contentType);
+        }
+
+        static MediaType contentTypeOf(Object value) {
+            if (value instanceof byte[]) {
+                return MediaType.OCTET_STREAM;
+            } else if (value instanceof CharSequence) {
+                return MediaType.PLAIN_TEXT_UTF_8;
+            }
+            return MediaType.JSON_UTF_8;
+        }
+
+        private static ByteBuf encode(Object value, ObjectMapper mapper) throws Exception {
+            byte[] bytes;
+            if (value instanceof byte[]) {
+                bytes = (byte[]) value;
+            } else if (value instanceof CharSequence) {
+                bytes = value.toString().getBytes(UTF_8);
+            } else {
+                bytes = mapper.writeValueAsBytes(value);
+            }
+            // A JDK direct buffer is freed when collected, so replaced
+            // values need no explicit release
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes);
+            ((Buffer) direct).flip();
+            return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(direct.asReadOnlyBuffer()));
+        }
+
+        private static final class Encoded {
+
+            final Object value;
+            final MediaType contentType;
+            volatile ByteBuf buffer;
+
+            Encoded(Object value) {
+                this.value = value;
+                this.contentType = contentTypeOf(value);
+            }
+        }
+
+        /**
+         * An encoded constant and its content type, which the response
+         * acteur unwraps; a bare buffer would lose the content type the value
+         * would have had if returned directly.
+         */
+        static final class Body {
+
+            final ByteBuf buffer;
+            final MediaType contentType;
+
+            Body(ByteBuf buffer, MediaType contentType) {
+                this.buffer = buffer;
+                this.contentType = contentType;
+            }
+        }
+    }
+
     static class JustTypedContentImpl<T> implements JustTypedContent<T>, Appliable {
 
         private final Class<T> type;
@@ -467,6 +1266,66 @@ public class App {
         }
     }
 
+    static final class EachTypedContent<T> implements Appliable {
+
+        final Class<T> type;
+        final ThrowingConsumer<T> each;
+        final ThrowingConsumer<List<T>> batch;
+        final int batchSize;
+
+        EachTypedContent(Class<T> type, ThrowingConsumer<T> each, ThrowingConsumer<List<T>> batch, int batchSize) {
+            this.type = type;
+            this.each = each;
+            this.batch = batch;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public Object doApply(HttpEvent evt, Map<String, String> pathParameters, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            StreamedBody body = evt.channel().attr(StreamedBody.KEY).getAndSet(null);
+            if (body != null) {
+                // Admitted and inside its deadline - only now is the body read
+                return StreamingEach.consume(body, this, deps.getInstance(ObjectMapper.class),
+                        deps.getInstance(App.class).handlerExecutor(), Deadline.current());
+            }
+            // Requests which did not come through a socket (in-process, batch)
+            // arrive already aggregated
+            ObjectMapper mapper = deps.getInstance(ObjectMapper.class);
+            ObjectReader reader = mapper.readerFor(type);
+            List<T> pending = batch == null ? null : new ArrayList<>(batchSize);
+            int count = 0;
+            // Read from a duplicate so the event's content is left untouched;
+            // Jackson reads from the stream incrementally, so only the element
+            // currently being bound is held in memory as objects
+            try (JsonParser parser = mapper.getFactory().createParser((InputStream) new ByteBufInputStream(evt.content().duplicate()))) {
+                JsonToken tok = parser.nextToken();
+                if (tok == JsonToken.START_ARRAY) {
+                    tok = parser.nextToken();
+                }
+                while (tok != null && tok != JsonToken.END_ARRAY) {
+                    T obj = reader.readValue(parser);
+                    count++;
+                    if (pending == null) {
+                        each.accept(obj);
+                    } else {
+                        pending.add(obj);
+                        if (pending.size() == batchSize) {
+                            batch.accept(pending);
+                            pending = new ArrayList<>(batchSize);
+                        }
+                    }
+                    tok = parser.nextToken();
+                }
+            } catch (JsonProcessingException ex) {
+                return BAD_REQUEST;
+            }
+            if (pending != null && !pending.isEmpty()) {
+                batch.accept(pending);
+            }
+            return count;
+        }
+    }
+
     static final <T> Object applyTyped(JustTypedContent<T> cont, HttpEvent evt) throws Exception {
         return cont.apply(evt.jsonContent(cont.type()));
     }
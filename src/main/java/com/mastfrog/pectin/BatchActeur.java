@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.net.MediaType;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import io.netty.handler.codec.http.HttpUtil;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+
+/**
+ * Handles the batch route enabled by <code>App.enableBatch()</code>: the body
+ * is a JSON array of <code>{"method", "path", "body"}</code> objects, each of
+ * which is run in parallel through the app's own routes with the in-process
+ * client. The response is newline-delimited JSON, one line per sub-request
+ * written as each completes, each carrying the index of the sub-request it
+ * answers.
+ *
+ * @author Tim Boudreau
+ */
+final class BatchActeur extends Acteur {
+
+    static final String PATH = "_batch";
+    static final int MAX_SUB_REQUESTS = 64;
+
+    @Inject
+    BatchActeur(HttpEvent evt, App app, ObjectMapper mapper) throws Exception {
+        SubRequest[] subRequests;
+        try {
+            subRequests = mapper.readValue((InputStream) new ByteBufInputStream(evt.content().duplicate()), SubRequest[].class);
+        } catch (JsonProcessingException ex) {
+            reply(BAD_REQUEST, "Body must be a JSON array of requests\n");
+            return;
+        }
+        if (subRequests == null) {
+            reply(BAD_REQUEST, "Body must be a JSON array of requests\n");
+            return;
+        }
+        if (subRequests.length > MAX_SUB_REQUESTS) {
+            reply(BAD_REQUEST, "At most " + MAX_SUB_REQUESTS + " requests may be batched\n");
+            return;
+        }
+        for (SubRequest sub : subRequests) {
+            if (sub == null || sub.path == null || stripSlash(sub.path).startsWith(PATH)) {
+                reply(BAD_REQUEST, "Each request needs a path, which may not be " + PATH + "\n");
+                return;
+            }
+            try {
+                sub.httpMethod = HttpMethod.valueOf(sub.method.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException | NullPointerException ex) {
+                reply(BAD_REQUEST, "Not an HTTP method: '" + sub.method + "'\n");
+                return;
+            }
+        }
+        InProcessClient client = app.inProcess();
+        List<CompletableFuture<FullHttpResponse>> futures = new ArrayList<>(subRequests.length);
+        for (SubRequest sub : subRequests) {
+            futures.add(client.send(sub.toRequest(evt.request().headers(), mapper)));
+        }
+        boolean keepAlive = HttpUtil.isKeepAlive(evt.request());
+        add(Headers.CONTENT_TYPE, MediaType.parse("application/x-ndjson;charset=utf-8"));
+        setChunked(true);
+        reply(OK);
+        setResponseBodyWriter(f -> {
+            if (!f.isSuccess()) {
+                for (CompletableFuture<FullHttpResponse> fut : futures) {
+                    fut.thenAccept(ReferenceCountUtil::release);
+                }
+                return;
+            }
+            Channel channel = f.channel();
+            AtomicInteger remaining = new AtomicInteger(futures.size());
+            if (futures.isEmpty()) {
+                finish(channel, keepAlive);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                int index = i;
+                futures.get(i).whenComplete((response, thrown) -> {
+                    channel.writeAndFlush(new DefaultHttpContent(encode(index, response, thrown, mapper)));
+                    // Writes are queued on the event loop in order, so the
+                    // last line is always ahead of the terminating chunk
+                    if (remaining.decrementAndGet() == 0) {
+                        finish(channel, keepAlive);
+                    }
+                });
+            }
+        });
+    }
+
+    private static void finish(Channel channel, boolean keepAlive) {
+        ChannelFuture last = channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!keepAlive) {
+            last.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static String stripSlash(String path) {
+        return path.length() > 0 && path.charAt(0) == '/' ? path.substring(1) : path;
+    }
+
+    private static ByteBuf encode(int index, FullHttpResponse response, Throwable thrown, ObjectMapper mapper) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("index", index);
+        try {
+            if (thrown != null) {
+                result.put("status", 500);
+                result.put("error", String.valueOf(thrown.getMessage()));
+            } else {
+                result.put("status", response.status().code());
+                String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+                if (contentType != null) {
+                    result.put("contentType", contentType);
+                }
+                if (response.content().isReadable()) {
+                    if (contentType != null && contentType.contains("json")) {
+                        JsonNode body = mapper.readTree((InputStream) new ByteBufInputStream(response.content()));
+                        result.put("body", body);
+                    } else {
+                        result.put("body", response.content().toString(UTF_8));
+                    }
+                }
+            }
+            byte[] bytes = mapper.writeValueAsBytes(result);
+            ByteBuf buf = Unpooled.buffer(bytes.length + 1);
+            buf.writeBytes(bytes).writeByte('\n');
+            return buf;
+        } catch (Exception ex) {
+            return Unpooled.copiedBuffer("{\"index\":" + index + ",\"status\":500}\n", UTF_8);
+        } finally {
+            if (response != null) {
+                response.release();
+            }
+        }
+    }
+
+    /**
+     * One entry in a batch request.
+     */
+    public static final class SubRequest {
+
+        public String method = "GET";
+        public String path;
+        public JsonNode body;
+        HttpMethod httpMethod;
+
+        FullHttpRequest toRequest(HttpHeaders outerHeaders, ObjectMapper mapper) throws Exception {
+            ByteBuf content = Unpooled.EMPTY_BUFFER;
+            if (body != null && !body.isNull()) {
+                content = Unpooled.wrappedBuffer(body.isTextual()
+                        ? body.textValue().getBytes(UTF_8) : mapper.writeValueAsBytes(body));
+            }
+            String uri = path.length() > 0 && path.charAt(0) == '/' ? path : '/' + path;
+            FullHttpRequest result = new DefaultFullHttpRequest(HTTP_1_1,
+                    httpMethod, uri, content);
+            // Pass along things like credentials and cookies, but not the
+            // headers which describe the batch's own body or connection
+            result.headers().set(outerHeaders);
+            result.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+            result.headers().remove(HttpHeaderNames.CONTENT_TYPE);
+            result.headers().remove(HttpHeaderNames.CONTENT_ENCODING);
+            result.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+            result.headers().remove(HttpHeaderNames.CONNECTION);
+            result.headers().remove(HttpHeaderNames.EXPECT);
+            // Sub-responses are decoded and re-encoded into the batch's
+            // response, so they must not be compressed
+            result.headers().remove(HttpHeaderNames.ACCEPT_ENCODING);
+            if (content.isReadable() && !body.isTextual()) {
+                result.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json;charset=utf-8");
+            }
+            HttpUtil.setContentLength(result, content.readableBytes());
+            return result;
+        }
+    }
+}
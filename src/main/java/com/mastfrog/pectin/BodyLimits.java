@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpExpectationFailedEvent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Per-route limits on request bodies, set with <code>maxBodySize()</code> and
+ * <code>accepts()</code> inside a <code>path()</code> block. They are enforced
+ * by a handler which PipelineHooks places ahead of Acteur's aggregator, so an
+ * oversized or unwanted body is refused from its headers, or as soon as the
+ * running byte count passes the limit, rather than after it has been
+ * buffered.
+ *
+ * @author Tim Boudreau
+ */
+final class BodyLimits {
+
+    long maxBytes = -1;
+    final Set<String> contentTypes = new LinkedHashSet<>();
+
+    static boolean hasBody(HttpHeaders headers) {
+        return HttpUtil.getContentLength(headers, 0) > 0
+                || headers.contains(HttpHeaderNames.TRANSFER_ENCODING);
+    }
+
+    /**
+     * Check a request's headers against these limits.
+     *
+     * @return The status to reject the request with, or null if it may
+     * proceed
+     */
+    HttpResponseStatus check(HttpHeaders headers) {
+        if (maxBytes >= 0 && HttpUtil.getContentLength(headers, 0) > maxBytes) {
+            return REQUEST_ENTITY_TOO_LARGE;
+        }
+        if (!contentTypes.isEmpty() && hasBody(headers) && !accepts(headers.get(HttpHeaderNames.CONTENT_TYPE))) {
+            return UNSUPPORTED_MEDIA_TYPE;
+        }
+        return null;
+    }
+
+    private boolean accepts(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = baseType(contentType);
+        if (contentTypes.contains(type)) {
+            return true;
+        }
+        int slash = type.indexOf('/');
+        return slash > 0 && contentTypes.contains(type.substring(0, slash) + "/*");
+    }
+
+    static String baseType(String contentType) {
+        int semi = contentType.indexOf(';');
+        return (semi < 0 ? contentType : contentType.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Refuses requests which break their route's limits, writing a bare
+     * response itself so nothing further down the pipeline sees the request.
+     * Once a request has been refused, the rest of its body is read and
+     * dropped if the connection is to be kept open.
+     */
+    static final class Enforcer extends ChannelInboundHandlerAdapter {
+
+        private final PipelineHooks hooks;
+        private boolean discarding;
+        private long remaining = -1;
+
+        Enforcer(PipelineHooks hooks) {
+            this.hooks = hooks;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest) {
+                discarding = false;
+                remaining = -1;
+                HttpRequest request = (HttpRequest) msg;
+                BodyLimits limits = hooks.limitsFor(request.uri());
+                if (limits != null) {
+                    HttpResponseStatus status = limits.check(request.headers());
+                    if (status == null && msg instanceof FullHttpRequest && limits.maxBytes >= 0
+                            && ((FullHttpRequest) msg).content().readableBytes() > limits.maxBytes) {
+                        status = REQUEST_ENTITY_TOO_LARGE;
+                    }
+                    if (status != null) {
+                        boolean expectsContinue = HttpUtil.is100ContinueExpected(request);
+                        // A client waiting on 100 Continue won't send the body,
+                        // so there is nothing to skip or to close over - reset
+                        // the decoder, as HttpObjectAggregator does, so the
+                        // next bytes are read as a new request
+                        boolean close = !HttpUtil.isKeepAlive(request)
+                                || (hooks.app.closeOnRejectedBody && !expectsContinue);
+                        if (expectsContinue) {
+                            ctx.pipeline().fireUserEventTriggered(HttpExpectationFailedEvent.INSTANCE);
+                        }
+                        reject(ctx, request, status, close);
+                        discarding = close || (!expectsContinue && !(msg instanceof LastHttpContent));
+                        ReferenceCountUtil.release(msg);
+                        return;
+                    }
+                    remaining = limits.maxBytes;
+                }
+            }
+            if (msg instanceof HttpContent && !(msg instanceof HttpRequest)) {
+                if (discarding) {
+                    discarding = !(msg instanceof LastHttpContent) || !ctx.channel().isOpen();
+                    ReferenceCountUtil.release(msg);
+                    return;
+                }
+                if (remaining >= 0) {
+                    remaining -= ((HttpContent) msg).content().readableBytes();
+                    if (remaining < 0) {
+                        // Part of the body has already gone to the
+                        // aggregator, so the connection cannot be reused
+                        ReferenceCountUtil.release(msg);
+                        discarding = true;
+                        reject(ctx, null, REQUEST_ENTITY_TOO_LARGE, true);
+                        return;
+                    }
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        private void reject(ChannelHandlerContext ctx, HttpRequest request, HttpResponseStatus status, boolean close) {
+            // Written as bytes, bypassing the encoder and compressor, which
+            // never saw this request
+            String version = request == null ? "HTTP/1.1" : request.protocolVersion().text();
+            String head = version + ' ' + status + "\r\nContent-Length: 0\r\n"
+                    + (close ? "Connection: close\r\n" : "Connection: keep-alive\r\n") + "\r\n";
+            if (close) {
+                ctx.writeAndFlush(Unpooled.wrappedBuffer(head.getBytes(US_ASCII))).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                ctx.writeAndFlush(Unpooled.wrappedBuffer(head.getBytes(US_ASCII)));
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.util.Checks;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelMatcher;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of server-sent-event and websocket connections which messages can
+ * be published to. Each message is encoded once per framing, and the same
+ * buffer is written to every subscriber as a retained duplicate. Subscribers
+ * whose channel is not writable (because they are not reading fast enough)
+ * have messages skipped rather than queued; after too many consecutive skipped
+ * messages, the connection is closed.
+ * <p>
+ * Register subscribers with <code>App.sse(broadcaster)</code> and
+ * <code>App.websocket(broadcaster)</code> inside a <code>path()</code> block.
+ *
+ * @author Tim Boudreau
+ */
+public final class Broadcaster {
+
+    private static final AttributeKey<AtomicInteger> SKIPPED = AttributeKey.valueOf("pectin-skipped");
+    private final ChannelGroup sse = new DefaultChannelGroup("sse", GlobalEventExecutor.INSTANCE);
+    private final ChannelGroup websockets = new DefaultChannelGroup("websockets", GlobalEventExecutor.INSTANCE);
+    private volatile ObjectMapper mapper;
+    private volatile int maxSkipped = 64;
+
+    private Broadcaster() {
+    }
+
+    public static Broadcaster create() {
+        return new Broadcaster();
+    }
+
+    /**
+     * Set the number of consecutive messages which may be skipped for a
+     * subscriber whose channel is not writable before it is disconnected.
+     *
+     * @param maxSkipped The number of messages
+     * @return this
+     */
+    public Broadcaster maxSkipped(int maxSkipped) {
+        Checks.nonNegative("maxSkipped", maxSkipped);
+        this.maxSkipped = maxSkipped;
+        return this;
+    }
+
+    public int subscribers() {
+        return sse.size() + websockets.size();
+    }
+
+    /**
+     * Publish a message to all subscribers, rendering it as JSON unless it is
+     * a String.
+     *
+     * @param message The message
+     * @return The number of subscribers it was written to
+     */
+    public int publish(Object message) {
+        return publish(null, message);
+    }
+
+    /**
+     * Publish a message to all subscribers, rendering it as JSON unless it is
+     * a String; server-sent-event subscribers will see it as an event with the
+     * passed name.
+     *
+     * @param event The event name, or null
+     * @param message The message
+     * @return The number of subscribers it was written to
+     */
+    public int publish(String event, Object message) {
+        Checks.notNull("message", message);
+        if (sse.isEmpty() && websockets.isEmpty()) {
+            return 0;
+        }
+        String text = encode(message, mapper);
+        Writable matcher = new Writable();
+        if (!sse.isEmpty()) {
+            // The group writes a retained duplicate to each channel and
+            // releases the original when done
+            sse.writeAndFlush(sseFrame(event, text), matcher);
+        }
+        if (!websockets.isEmpty()) {
+            ByteBuf buf = ByteBufAllocator.DEFAULT.directBuffer(text.length());
+            buf.writeCharSequence(text, UTF_8);
+            websockets.writeAndFlush(new TextWebSocketFrame(buf), matcher);
+        }
+        return matcher.written;
+    }
+
+    void subscribeServerSentEvents(Channel channel, ObjectMapper mapper) {
+        subscribe(sse, channel, mapper);
+    }
+
+    void subscribeWebSocket(Channel channel, ObjectMapper mapper) {
+        subscribe(websockets, channel, mapper);
+    }
+
+    private void subscribe(ChannelGroup group, Channel channel, ObjectMapper mapper) {
+        if (this.mapper == null) {
+            this.mapper = mapper;
+        }
+        channel.attr(SKIPPED).set(new AtomicInteger());
+        // Closed channels are removed from the group automatically
+        group.add(channel);
+    }
+
+    private static ByteBuf sseFrame(String event, String text) {
+        ByteBuf buf = ByteBufAllocator.DEFAULT.directBuffer(text.length() + 16);
+        if (event != null) {
+            buf.writeCharSequence("event: ", UTF_8);
+            buf.writeCharSequence(event, UTF_8);
+            buf.writeByte('\n');
+        }
+        int start = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i == text.length() || text.charAt(i) == '\n') {
+                buf.writeCharSequence("data: ", UTF_8);
+                buf.writeCharSequence(text.subSequence(start, i), UTF_8);
+                buf.writeByte('\n');
+                start = i + 1;
+            }
+        }
+        buf.writeByte('\n');
+        return buf;
+    }
+
+    static String encode(Object message, ObjectMapper mapper) {
+        if (message instanceof CharSequence) {
+            return message.toString();
+        }
+        try {
+            return (mapper == null ? new ObjectMapper() : mapper).writeValueAsString(message);
+        } catch (JsonProcessingException ex) {
+            throw new IllegalArgumentException("Cannot encode " + message, ex);
+        }
+    }
+
+    private final class Writable implements ChannelMatcher {
+
+        int written;
+
+        @Override
+        public boolean matches(Channel channel) {
+            AtomicInteger skipped = channel.attr(SKIPPED).get();
+            if (channel.isWritable()) {
+                if (skipped != null) {
+                    skipped.set(0);
+                }
+                written++;
+                return true;
+            }
+            if (skipped != null && skipped.incrementAndGet() > maxSkipped) {
+                channel.close();
+            }
+            return false;
+        }
+    }
+}
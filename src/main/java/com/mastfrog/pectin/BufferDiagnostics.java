@@ -0,0 +1,432 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.mastfrog.util.thread.NonThrowingAutoCloseable;
+import com.mastfrog.util.thread.ProtectedThreadLocal;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.channel.Channel;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+import io.netty.util.internal.PlatformDependent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reports on buffer allocator usage and sampled buffer leaks. Leak reports
+ * include the route whose request or response the leaked buffer belonged to,
+ * since Pectin touches request and response buffers with the route template.
+ * <p>
+ * Enable with <code>App.enableBufferDiagnostics()</code>, before the app is
+ * started (leak detection is configured when Netty's buffer classes are
+ * initialized, so this needs to happen before anything allocates a buffer).
+ * The snapshot is a Map, so it can be returned directly from a handler:
+ * <pre>
+ * path("_buffers", () -&gt; get(app.bufferDiagnostics()::snapshot));
+ * </pre>
+ *
+ * @author Tim Boudreau
+ */
+public final class BufferDiagnostics {
+
+    private static final int MAX_LEAK_REPORTS = 100;
+    private static final String ROUTE_HINT_PREFIX = "pectin-route: ";
+    private static final Pattern ROUTE_HINT = Pattern.compile(Pattern.quote(ROUTE_HINT_PREFIX) + "(\\S+ \\S+)");
+    private static final Deque<LeakReport> LEAKS = new ArrayDeque<>();
+    private static final ProtectedThreadLocal<String> CURRENT_ROUTE = new ProtectedThreadLocal<>();
+    private static final NonThrowingAutoCloseable NO_ROUTE = () -> {
+    };
+    private static volatile boolean installed;
+    private final App app;
+
+    BufferDiagnostics(App app) {
+        this.app = app;
+    }
+
+    private ByteBufAllocator allocator() {
+        // Resolved lazily, so this can be referenced while routes are still
+        // being set up
+        try {
+            return app.dependencies().getInstance(ByteBufAllocator.class);
+        } catch (Exception ex) {
+            return ByteBufAllocator.DEFAULT;
+        }
+    }
+
+    static synchronized void install() {
+        if (!installed) {
+            installed = true;
+            // Below ADVANCED, touch() records nothing and leaks are reported
+            // without records, so the route could never be recovered
+            if (ResourceLeakDetector.getLevel().ordinal() < ResourceLeakDetector.Level.ADVANCED.ordinal()) {
+                ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.ADVANCED);
+            }
+            ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new RouteTaggingLeakDetectorFactory());
+        }
+    }
+
+    /**
+     * Set the route which buffers allocated from a channel's allocator on
+     * this thread are tagged with, until the returned object is closed.
+     */
+    static NonThrowingAutoCloseable enterRoute(String hint) {
+        return hint == null ? NO_ROUTE : CURRENT_ROUTE.set(hint);
+    }
+
+    /**
+     * Make buffers allocated from a channel's allocator while a handler runs
+     * carry its route from the moment they are created, so that buffers a
+     * handler allocates and then drops are attributed too.
+     */
+    static void tagAllocations(Channel channel) {
+        ByteBufAllocator alloc = channel.config().getAllocator();
+        if (!(alloc instanceof RouteTaggingAllocator)) {
+            channel.config().setAllocator(new RouteTaggingAllocator(alloc));
+        }
+    }
+
+    static boolean enabled() {
+        return installed;
+    }
+
+    static String routeHint(String method, String route) {
+        return ROUTE_HINT_PREFIX + method + " " + route;
+    }
+
+    /**
+     * Enforce Pectin's ownership rule for a buffer returned by a handler:
+     * Pectin releases it once written, so a buffer which shares storage with
+     * the request body (which Pectin also releases) is replaced with a
+     * retained duplicate.
+     */
+    static ByteBuf claim(ByteBuf result, ByteBuf requestContent, String hint) {
+        if (result.refCnt() == 0) {
+            throw new IllegalStateException("Handler for " + hint + " returned a released buffer");
+        }
+        if (requestContent != null && root(result) == root(requestContent)) {
+            result = result.retainedDuplicate();
+        }
+        return enabled() ? result.touch(hint) : result;
+    }
+
+    private static ByteBuf root(ByteBuf buf) {
+        for (ByteBuf parent = buf.unwrap(); parent != null; parent = parent.unwrap()) {
+            buf = parent;
+        }
+        return buf;
+    }
+
+    /**
+     * Get the most recent leak reports, oldest first.
+     *
+     * @return A list of leak reports
+     */
+    public List<LeakReport> leaks() {
+        synchronized (LEAKS) {
+            return new ArrayList<>(LEAKS);
+        }
+    }
+
+    /**
+     * Get a snapshot of allocator, arena and direct memory usage, and recent
+     * leak reports.
+     *
+     * @return A map
+     */
+    public Map<String, Object> snapshot() {
+        ByteBufAllocator allocator = allocator();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("allocator", allocator.getClass().getSimpleName());
+        result.put("maxDirectMemory", PlatformDependent.maxDirectMemory());
+        result.put("leakDetectionLevel", ResourceLeakDetector.getLevel().name());
+        if (allocator instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) allocator).metric();
+            result.put("usedDirectMemory", metric.usedDirectMemory());
+            result.put("usedHeapMemory", metric.usedHeapMemory());
+            if (metric instanceof PooledByteBufAllocatorMetric) {
+                PooledByteBufAllocatorMetric pooled = (PooledByteBufAllocatorMetric) metric;
+                result.put("chunkSize", pooled.chunkSize());
+                result.put("threadLocalCaches", pooled.numThreadLocalCaches());
+                result.put("directArenas", arenas(pooled.directArenas()));
+                result.put("heapArenas", arenas(pooled.heapArenas()));
+            }
+        }
+        List<Map<String, Object>> leaks = new ArrayList<>();
+        for (LeakReport leak : leaks()) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("route", leak.route());
+            m.put("type", leak.resourceType());
+            m.put("when", leak.timestamp());
+            leaks.add(m);
+        }
+        result.put("leaks", leaks);
+        return result;
+    }
+
+    private static List<Map<String, Object>> arenas(List<PoolArenaMetric> arenas) {
+        List<Map<String, Object>> result = new ArrayList<>(arenas.size());
+        for (PoolArenaMetric arena : arenas) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("activeAllocations", arena.numActiveAllocations());
+            m.put("activeBytes", arena.numActiveBytes());
+            m.put("allocations", arena.numAllocations());
+            m.put("deallocations", arena.numDeallocations());
+            m.put("threadCaches", arena.numThreadCaches());
+            result.add(m);
+        }
+        return result;
+    }
+
+    static void recordLeak(String resourceType, String records) {
+        String route = null;
+        if (records != null) {
+            Matcher m = ROUTE_HINT.matcher(records);
+            if (m.find()) {
+                route = m.group(1);
+            }
+        }
+        synchronized (LEAKS) {
+            if (LEAKS.size() == MAX_LEAK_REPORTS) {
+                LEAKS.removeFirst();
+            }
+            LEAKS.addLast(new LeakReport(resourceType, route, records));
+        }
+    }
+
+    /**
+     * A sampled report of a buffer which was garbage collected without being
+     * released.
+     */
+    public static final class LeakReport {
+
+        private final String resourceType;
+        private final String route;
+        private final String records;
+        private final long timestamp = System.currentTimeMillis();
+
+        LeakReport(String resourceType, String route, String records) {
+            this.resourceType = resourceType;
+            this.route = route;
+            this.records = records;
+        }
+
+        public String resourceType() {
+            return resourceType;
+        }
+
+        /**
+         * The method and route template the buffer was last touched by, if
+         * known.
+         *
+         * @return A route or null
+         */
+        public String route() {
+            return route;
+        }
+
+        /**
+         * The access records Netty collected for the buffer, if it was
+         * traced.
+         *
+         * @return The records or null
+         */
+        public String records() {
+            return records;
+        }
+
+        public long timestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return resourceType + " leaked from " + (route == null ? "unknown route" : route);
+        }
+    }
+
+    /**
+     * Touches each buffer it allocates with the route set by
+     * <code>enterRoute()</code> on the allocating thread, if any.
+     */
+    static final class RouteTaggingAllocator implements ByteBufAllocator {
+
+        private final ByteBufAllocator delegate;
+
+        RouteTaggingAllocator(ByteBufAllocator delegate) {
+            this.delegate = delegate;
+        }
+
+        private static <T extends ByteBuf> T tag(T buf) {
+            String route = CURRENT_ROUTE.get();
+            if (route != null) {
+                buf.touch(route);
+            }
+            return buf;
+        }
+
+        @Override
+        public ByteBuf buffer() {
+            return tag(delegate.buffer());
+        }
+
+        @Override
+        public ByteBuf buffer(int initialCapacity) {
+            return tag(delegate.buffer(initialCapacity));
+        }
+
+        @Override
+        public ByteBuf buffer(int initialCapacity, int maxCapacity) {
+            return tag(delegate.buffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        public ByteBuf ioBuffer() {
+            return tag(delegate.ioBuffer());
+        }
+
+        @Override
+        public ByteBuf ioBuffer(int initialCapacity) {
+            return tag(delegate.ioBuffer(initialCapacity));
+        }
+
+        @Override
+        public ByteBuf ioBuffer(int initialCapacity, int maxCapacity) {
+            return tag(delegate.ioBuffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        public ByteBuf heapBuffer() {
+            return tag(delegate.heapBuffer());
+        }
+
+        @Override
+        public ByteBuf heapBuffer(int initialCapacity) {
+            return tag(delegate.heapBuffer(initialCapacity));
+        }
+
+        @Override
+        public ByteBuf heapBuffer(int initialCapacity, int maxCapacity) {
+            return tag(delegate.heapBuffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        public ByteBuf directBuffer() {
+            return tag(delegate.directBuffer());
+        }
+
+        @Override
+        public ByteBuf directBuffer(int initialCapacity) {
+            return tag(delegate.directBuffer(initialCapacity));
+        }
+
+        @Override
+        public ByteBuf directBuffer(int initialCapacity, int maxCapacity) {
+            return tag(delegate.directBuffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        public CompositeByteBuf compositeBuffer() {
+            return tag(delegate.compositeBuffer());
+        }
+
+        @Override
+        public CompositeByteBuf compositeBuffer(int maxNumComponents) {
+            return tag(delegate.compositeBuffer(maxNumComponents));
+        }
+
+        @Override
+        public CompositeByteBuf compositeHeapBuffer() {
+            return tag(delegate.compositeHeapBuffer());
+        }
+
+        @Override
+        public CompositeByteBuf compositeHeapBuffer(int maxNumComponents) {
+            return tag(delegate.compositeHeapBuffer(maxNumComponents));
+        }
+
+        @Override
+        public CompositeByteBuf compositeDirectBuffer() {
+            return tag(delegate.compositeDirectBuffer());
+        }
+
+        @Override
+        public CompositeByteBuf compositeDirectBuffer(int maxNumComponents) {
+            return tag(delegate.compositeDirectBuffer(maxNumComponents));
+        }
+
+        @Override
+        public boolean isDirectBufferPooled() {
+            return delegate.isDirectBufferPooled();
+        }
+
+        @Override
+        public int calculateNewCapacity(int minNewCapacity, int maxCapacity) {
+            return delegate.calculateNewCapacity(minNewCapacity, maxCapacity);
+        }
+    }
+
+    static final class RouteTaggingLeakDetectorFactory extends ResourceLeakDetectorFactory {
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval, long maxActive) {
+            return new RouteTaggingLeakDetector<>(resource, samplingInterval);
+        }
+
+        public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval) {
+            return new RouteTaggingLeakDetector<>(resource, samplingInterval);
+        }
+    }
+
+    static final class RouteTaggingLeakDetector<T> extends ResourceLeakDetector<T> {
+
+        RouteTaggingLeakDetector(Class<?> resourceType, int samplingInterval) {
+            super(resourceType, samplingInterval);
+        }
+
+        @Override
+        protected void reportTracedLeak(String resourceType, String records) {
+            super.reportTracedLeak(resourceType, records);
+            recordLeak(resourceType, records);
+        }
+
+        @Override
+        protected void reportUntracedLeak(String resourceType) {
+            super.reportUntracedLeak(resourceType);
+            recordLeak(resourceType, null);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.mastfrog.util.thread.NonThrowingAutoCloseable;
+import com.mastfrog.util.thread.ProtectedThreadLocal;
+import java.time.Duration;
+
+/**
+ * The time budget for the request currently being handled. A handler can call
+ * <code>Deadline.current()</code> while it is running (capturing the result if
+ * it needs it later from another thread) to find out how much time remains, and
+ * pass that on to calls it makes to other services.
+ * <p>
+ * If a handler returns a CompletableFuture which has not completed when the
+ * deadline expires, the future is cancelled and the response is
+ * <code>504 Gateway Timeout</code>; if the client disconnects first, it is
+ * cancelled without a response.
+ *
+ * @author Tim Boudreau
+ */
+public final class Deadline {
+
+    private static final ProtectedThreadLocal<Deadline> CURRENT = new ProtectedThreadLocal<>();
+    static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    static Deadline after(Duration duration) {
+        return duration == null ? NONE : new Deadline(System.nanoTime() + duration.toNanos());
+    }
+
+    /**
+     * Get the deadline for the request being processed on the calling thread.
+     *
+     * @return A deadline, which will be unbounded if called outside of a
+     * handler or if no timeout was configured
+     */
+    public static Deadline current() {
+        Deadline result = CURRENT.get();
+        return result == null ? NONE : result;
+    }
+
+    NonThrowingAutoCloseable enter() {
+        return CURRENT.set(this);
+    }
+
+    /**
+     * Determine if this deadline will ever expire.
+     *
+     * @return true if a timeout applies
+     */
+    public boolean isBounded() {
+        return expiresAt != Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return isBounded() && System.nanoTime() - expiresAt >= 0;
+    }
+
+    /**
+     * Get the time remaining, which will be zero if expired, or
+     * <code>Long.MAX_VALUE</code> milliseconds if unbounded.
+     *
+     * @return The time remaining
+     */
+    public Duration remaining() {
+        return Duration.ofMillis(remainingMillis());
+    }
+
+    public long remainingMillis() {
+        if (!isBounded()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (expiresAt - System.nanoTime()) / 1000000L);
+    }
+
+    long remainingNanos() {
+        return isBounded() ? Math.max(0, expiresAt - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return isBounded() ? remainingMillis() + "ms" : "unbounded";
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import io.netty.channel.AbstractChannel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DefaultSocketChannelConfig;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.SocketChannelConfig;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.function.Consumer;
+
+/**
+ * A channel with no socket behind it: inbound messages are fired into its
+ * pipeline directly, and whatever the pipeline writes is handed to a
+ * consumer. It implements SocketChannel so Acteur's channel initializer will
+ * accept it.
+ *
+ * @author Tim Boudreau
+ */
+final class InProcessChannel extends AbstractChannel implements SocketChannel {
+
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+    private static final InetSocketAddress LOOPBACK = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    private final SocketChannelConfig config = new DefaultSocketChannelConfig(this, new NullSocket());
+    private final Consumer<Object> output;
+    private volatile boolean open = true;
+
+    InProcessChannel(Consumer<Object> output) {
+        super(null);
+        this.output = output;
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new AbstractUnsafe() {
+            @Override
+            public void connect(SocketAddress remoteAddress, SocketAddress localAddress, ChannelPromise promise) {
+                promise.setFailure(new UnsupportedOperationException("In-process channels are already connected"));
+            }
+        };
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        return true;
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return LOOPBACK;
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return LOOPBACK;
+    }
+
+    @Override
+    public InetSocketAddress localAddress() {
+        return LOOPBACK;
+    }
+
+    @Override
+    public InetSocketAddress remoteAddress() {
+        return LOOPBACK;
+    }
+
+    @Override
+    public ServerSocketChannel parent() {
+        return null;
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) throws Exception {
+        throw new UnsupportedOperationException("In-process channels cannot be bound");
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        doClose();
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        open = false;
+    }
+
+    @Override
+    protected void doBeginRead() throws Exception {
+        // Requests are pushed in by InProcessClient
+    }
+
+    @Override
+    protected void doWrite(ChannelOutboundBuffer in) throws Exception {
+        for (Object msg = in.current(); msg != null; msg = in.current()) {
+            // The consumer must retain anything it keeps - remove() releases
+            output.accept(msg);
+            in.remove();
+        }
+    }
+
+    @Override
+    public SocketChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isActive() {
+        return open;
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return !open;
+    }
+
+    @Override
+    public ChannelFuture shutdownInput() {
+        return close();
+    }
+
+    @Override
+    public ChannelFuture shutdownInput(ChannelPromise promise) {
+        return close(promise);
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return !open;
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput() {
+        return close();
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput(ChannelPromise promise) {
+        return close(promise);
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return !open;
+    }
+
+    @Override
+    public ChannelFuture shutdown() {
+        return close();
+    }
+
+    @Override
+    public ChannelFuture shutdown(ChannelPromise promise) {
+        return close(promise);
+    }
+
+    /**
+     * DefaultSocketChannelConfig needs a socket; this one never opens a file
+     * descriptor, and reports defaults for the options Acteur might ask about.
+     */
+    private static final class NullSocket extends Socket {
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+        }
+
+        @Override
+        public boolean getTcpNoDelay() {
+            return true;
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) {
+        }
+
+        @Override
+        public boolean getKeepAlive() {
+            return true;
+        }
+
+        @Override
+        public synchronized void close() {
+        }
+    }
+}
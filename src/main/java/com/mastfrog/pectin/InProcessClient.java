@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseDecoder;
+import io.netty.handler.codec.http.HttpUtil;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Sends requests through an App's full pipeline - routing, handlers and
+ * response encoding - without a socket or a bound port, for benchmarking
+ * routes in isolation from the network, and for running tests in parallel.
+ * Each request gets its own channel, so any number may be in flight at once.
+ * <p>
+ * The app does not need to be started, but its routes must be set up before
+ * the first request is sent. Responses are reference counted, and should be
+ * released by the caller.
+ *
+ * @author Tim Boudreau
+ */
+public final class InProcessClient implements AutoCloseable {
+
+    private static final int MAX_RESPONSE_SIZE = 64 * 1024 * 1024;
+    private final ChannelInitializer<SocketChannel> pipelineFactory;
+    private final EventLoopGroup group;
+
+    InProcessClient(ChannelInitializer<SocketChannel> pipelineFactory) {
+        this.pipelineFactory = pipelineFactory;
+        this.group = new DefaultEventLoopGroup(Runtime.getRuntime().availableProcessors(),
+                new DefaultThreadFactory("pectin-in-process"));
+    }
+
+    public CompletableFuture<FullHttpResponse> get(String uri) {
+        return send(HttpMethod.GET, uri, Unpooled.EMPTY_BUFFER);
+    }
+
+    public CompletableFuture<FullHttpResponse> send(HttpMethod method, String uri, String body) {
+        return send(method, uri, body == null ? Unpooled.EMPTY_BUFFER : Unpooled.copiedBuffer(body, UTF_8));
+    }
+
+    /**
+     * Send a request; ownership of the body passes to this client.
+     *
+     * @param method The method
+     * @param uri The path and query
+     * @param body The body
+     * @return A future which will be completed with the response
+     */
+    public CompletableFuture<FullHttpResponse> send(HttpMethod method, String uri, ByteBuf body) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HTTP_1_1, method, uri, body);
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+        HttpUtil.setContentLength(request, body.readableBytes());
+        return send(request);
+    }
+
+    /**
+     * Send a request; ownership of it passes to this client.
+     *
+     * @param request The request
+     * @return A future which will be completed with the response
+     */
+    public CompletableFuture<FullHttpResponse> send(FullHttpRequest request) {
+        ResponseCollector collector = new ResponseCollector();
+        InProcessChannel channel = new InProcessChannel(collector);
+        channel.pipeline().addLast(pipelineFactory);
+        channel.closeFuture().addListener(f -> collector.closed());
+        group.register(channel).addListener(f -> {
+            if (!f.isSuccess()) {
+                ReferenceCountUtil.release(request);
+                collector.future.completeExceptionally(f.cause());
+                return;
+            }
+            // The request is already aggregated, so it passes through
+            // the decoder and aggregator in the pipeline unchanged
+            channel.pipeline().fireChannelRead(request);
+            channel.pipeline().fireChannelReadComplete();
+        });
+        collector.future.whenComplete((response, thrown) -> channel.close());
+        return collector.future;
+    }
+
+    @Override
+    public void close() {
+        group.shutdownGracefully();
+    }
+
+    /**
+     * Decodes the bytes written to the channel back into a response; only
+     * ever called from the channel's event loop.
+     */
+    private static final class ResponseCollector implements Consumer<Object> {
+
+        final CompletableFuture<FullHttpResponse> future = new CompletableFuture<>();
+        private final EmbeddedChannel decoder = new EmbeddedChannel(new HttpResponseDecoder(),
+                new HttpObjectAggregator(MAX_RESPONSE_SIZE));
+
+        @Override
+        public void accept(Object msg) {
+            if (future.isDone()) {
+                return;
+            }
+            if (msg instanceof ByteBuf) {
+                decoder.writeInbound(((ByteBuf) msg).retain());
+            } else if (msg instanceof ByteBufHolder) {
+                decoder.writeInbound(((ByteBufHolder) msg).content().retain());
+            } else {
+                future.completeExceptionally(new IllegalStateException("Cannot decode a " + msg.getClass().getName()));
+                return;
+            }
+            poll();
+        }
+
+        void closed() {
+            if (!future.isDone()) {
+                // A response without a content length ends when the
+                // connection does
+                decoder.finish();
+                poll();
+                if (!future.isDone()) {
+                    future.completeExceptionally(new ClosedChannelException());
+                }
+            }
+            decoder.finishAndReleaseAll();
+        }
+
+        private void poll() {
+            Object response = decoder.readInbound();
+            if (response instanceof FullHttpResponse) {
+                if (!future.complete((FullHttpResponse) response)) {
+                    ReferenceCountUtil.release(response);
+                }
+            } else if (response != null) {
+                ReferenceCountUtil.release(response);
+            }
+        }
+    }
+}
@@ -23,11 +23,15 @@
  */
 package com.mastfrog.pectin;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.net.MediaType;
 import com.google.inject.name.Named;
 import com.mastfrog.acteur.Acteur;
 import com.mastfrog.acteur.Application;
+import com.mastfrog.acteur.Deferral;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Page;
+import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.resources.ResourcesPage;
 import com.mastfrog.acteur.util.HttpMethod;
 import com.mastfrog.acteurbase.Chain;
@@ -36,10 +40,14 @@ import com.mastfrog.pectin.App.Acteurs;
 import com.mastfrog.pectin.App.Appliable;
 import com.mastfrog.pectin.PectinActeurApplication.AppliableWrapper;
 import com.mastfrog.url.Path;
+import com.mastfrog.util.Exceptions;
+import com.mastfrog.util.thread.NonThrowingAutoCloseable;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpResponseStatus.GONE;
 import static io.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
-import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -55,7 +63,7 @@ import javax.inject.Inject;
  * @author Tim Boudreau
  */
 @SuppressWarnings("deprecation")
-@com.mastfrog.acteur.ImplicitBindings(AppliableWrapper.class)
+@com.mastfrog.acteur.ImplicitBindings({AppliableWrapper.class, PendingResult.class, ReverseProxy.Exchange.class})
 class PectinActeurApplication extends Application {
 
     @Inject
@@ -77,11 +85,15 @@ class PectinActeurApplication extends Application {
         static class CheckMethods extends Acteur {
 
             @Inject
-            CheckMethods(HttpEvent evt, App app, @Named("paths") String[] paths, PathPatterns pp, Chain<Acteur, ? extends Chain<Acteur, ?>> chain) {
+            CheckMethods(HttpEvent evt, App app, @Named("paths") String[] paths, PathPatterns pp, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Deferral deferral) {
+                RequestTimings timings = RequestTimings.create(app.serverTiming);
+                if (timings != null) {
+                    timings.begin(RequestTimings.ROUTE);
+                }
                 Path path = evt.path();
                 String pth = path.toString();
                 String foundPath = null;
-                Map<String, String> pathParams = null;
+                Map<Integer, String> paramPositions = null;
                 for (String test : paths) {
                     if (pp.isExactGlob(test) && test.equals(Path.parse(pth).equals(evt.path()))) {
                         foundPath = test;
@@ -92,13 +104,7 @@ class PectinActeurApplication extends Application {
                         Matcher m = p.matcher(pth);
                         if (m.find()) {
                             foundPath = test;
-                            if (!patterns.isEmpty()) {
-                                pathParams = new LinkedHashMap<>();
-                                for (Map.Entry<Integer, String> e : patterns.entrySet()) {
-                                    String val = path.getElement(e.getKey()).toString();
-                                    pathParams.put(e.getValue(), val);
-                                }
-                            }
+                            paramPositions = patterns;
                             break;
                         }
                     }
@@ -112,24 +118,121 @@ class PectinActeurApplication extends Application {
                     reply(METHOD_NOT_ALLOWED);
                     return;
                 }
+                if (app.bodyLimitsForPath.containsKey(foundPath)) {
+                    // Normally caught before aggregation; this covers
+                    // requests which did not come through a socket
+                    HttpResponseStatus refusal = app.bodyLimitsForPath.get(foundPath).check(evt.request().headers());
+                    if (refusal != null) {
+                        reply(refusal);
+                        return;
+                    }
+                }
                 Appliable a = app.methodsForPath.get(foundPath).get(evt.method());
-                next(new AppliableWrapper(a, pathParams));
+                Map<String, String> pathParams = null;
+                // Typed handlers parse what they need straight from the URI
+                if (paramPositions != null && !paramPositions.isEmpty() && !(a instanceof TypedParameters.UriBound)) {
+                    pathParams = new LinkedHashMap<>();
+                    for (Map.Entry<Integer, String> e : paramPositions.entrySet()) {
+                        String val = path.getElement(e.getKey()).toString();
+                        pathParams.put(e.getValue(), val);
+                    }
+                }
+                if (timings != null) {
+                    timings.route(evt.method().name(), foundPath);
+                    RequestTimings.Early aggregated = evt.channel().attr(RequestTimings.AGGREGATED).getAndSet(null);
+                    if (aggregated != null) {
+                        timings.add(aggregated);
+                    }
+                    timings.end();
+                    evt.channel().attr(RequestTimings.CURRENT).set(timings);
+                }
+                Deadline deadline = Deadline.after(app.deadlineFor(foundPath));
+                Admission.Ticket ticket = null;
+                if (app.admissionEnabled()) {
+                    ticket = app.admission.admit(app.priorityFor(foundPath), evt.channel(), timings, deadline, deferral::defer);
+                    if (ticket.isShed()) {
+                        reply(SERVICE_UNAVAILABLE);
+                        return;
+                    }
+                }
+                // If the ticket was queued, the chain is deferred until it is
+                // admitted or its deadline passes
+                next(new AppliableWrapper(a, foundPath, pathParams, deadline, timings, ticket));
             }
         }
 
-        static class SendResponse extends Acteur {
+        static class SendResponse extends Responder {
 
             @Inject
-            SendResponse(AppliableWrapper responder, HttpEvent evt, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            SendResponse(AppliableWrapper responder, HttpEvent evt, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps, Deferral deferral, ObjectMapper mapper) throws Exception {
                 Object result = responder.apply(evt, chain, deps);
+                if (result instanceof CompletableFuture<?>) {
+                    if (responder.timings != null) {
+                        responder.timings.begin(RequestTimings.AWAIT);
+                    }
+                    PendingResult.await((CompletableFuture<?>) result, responder.deadline, evt.channel(), deferral.defer());
+                    chain.add(SendPendingResult.class);
+                    next();
+                } else if (result instanceof Acteurs) {
+                    next();
+                } else {
+                    respond(result, responder.timings, mapper);
+                }
+            }
+        }
+
+        static class SendPendingResult extends Responder {
+
+            @Inject
+            SendPendingResult(PendingResult pending, AppliableWrapper responder, HttpEvent evt, ObjectMapper mapper) throws Exception {
+                if (responder.timings != null) {
+                    responder.timings.end();
+                }
+                if (pending.status != null) {
+                    respond(pending.status, responder.timings, mapper);
+                } else if (pending.thrown != null) {
+                    Exceptions.chuck(pending.thrown);
+                } else {
+                    respond(responder.claim(pending.result, evt), responder.timings, mapper);
+                }
+            }
+        }
+
+        abstract static class Responder extends Acteur {
+
+            void respond(Object result, RequestTimings timings, ObjectMapper mapper) throws Exception {
+                if (result instanceof App.Constant.Body) {
+                    App.Constant.Body body = (App.Constant.Body) result;
+                    add(Headers.CONTENT_TYPE, body.contentType);
+                    result = body.buffer;
+                }
+                if (result != null && !(result instanceof HttpResponseStatus)
+                        && !(result instanceof CharSequence) && !(result instanceof byte[])
+                        && !(result instanceof ByteBuf)) {
+                    // Acteur would serialize the result after this acteur
+                    // returns, out of sight; do it here so it can be timed.
+                    // Always, so a recording being on never changes the
+                    // response
+                    if (timings != null) {
+                        timings.begin(RequestTimings.SERIALIZE);
+                    }
+                    try {
+                        result = Unpooled.wrappedBuffer(mapper.writeValueAsBytes(result));
+                        add(Headers.CONTENT_TYPE, MediaType.JSON_UTF_8);
+                    } finally {
+                        if (timings != null) {
+                            timings.end();
+                        }
+                    }
+                }
+                String serverTiming = timings == null ? null : timings.serverTimingHeader();
+                if (serverTiming != null) {
+                    add(Headers.header("Server-Timing"), serverTiming);
+                }
                 if (result == null) {
                     reply(GONE);
                 } else if (result instanceof HttpResponseStatus) {
                     reply((HttpResponseStatus) result);
-                } else if (result instanceof CompletableFuture<?>) {
-                    then(((CompletableFuture<?>) result), OK);
-                } else if (result instanceof Acteurs) {
-                    next();
                 } else {
                     ok(result);
                 }
@@ -140,15 +243,66 @@ class PectinActeurApplication extends Application {
     static final class AppliableWrapper {
 
         final Appliable toApply;
+        final String route;
         final Map<String, String> params;
+        final Deadline deadline;
+        final RequestTimings timings;
+        final Admission.Ticket ticket;
 
-        public AppliableWrapper(Appliable toApply, Map<String, String> params) {
+        public AppliableWrapper(Appliable toApply, String route, Map<String, String> params, Deadline deadline, RequestTimings timings, Admission.Ticket ticket) {
             this.toApply = toApply;
+            this.route = route;
             this.params = params == null ? Collections.emptyMap() : params;
+            this.deadline = deadline;
+            this.timings = timings;
+            this.ticket = ticket;
         }
 
         Object apply(HttpEvent evt, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
-            return toApply.doApply(evt, params, chain, deps);
+            if (ticket != null && ticket.isExpired()) {
+                // Its deadline passed while it was queued
+                return SERVICE_UNAVAILABLE;
+            }
+            String hint = null;
+            if (BufferDiagnostics.enabled()) {
+                hint = BufferDiagnostics.routeHint(evt.method().name(), route);
+                evt.content().touch(hint);
+            }
+            if (timings != null) {
+                timings.begin(RequestTimings.HANDLER);
+            }
+            boolean released = ticket == null;
+            try (NonThrowingAutoCloseable ac = deadline.enter(); NonThrowingAutoCloseable rc = BufferDiagnostics.enterRoute(hint)) {
+                Object result = claim(toApply.doApply(evt, params, chain, deps), evt);
+                if (!released) {
+                    released = true;
+                    // The handler permit is only held while the handler runs;
+                    // work it leaves outstanding is counted separately
+                    if (result instanceof CompletableFuture<?>) {
+                        ticket.releaseWhenComplete((CompletableFuture<?>) result);
+                    } else if (result instanceof Acteurs<?>) {
+                        ticket.releaseOnResponse();
+                    } else {
+                        ticket.release();
+                    }
+                }
+                return result;
+            } finally {
+                if (!released) {
+                    ticket.release();
+                }
+                if (timings != null) {
+                    timings.end();
+                }
+            }
+        }
+
+        Object claim(Object result, HttpEvent evt) throws Exception {
+            if (result instanceof ByteBuf) {
+                return BufferDiagnostics.claim((ByteBuf) result, evt.content(),
+                        BufferDiagnostics.routeHint(evt.method().name(), route));
+            }
+            return result;
         }
     }
 }
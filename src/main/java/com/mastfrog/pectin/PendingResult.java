@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.mastfrog.acteur.Deferral.Resumer;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.GATEWAY_TIMEOUT;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * The outcome of a CompletableFuture returned by a handler, which is added to
+ * the request context when the deferred acteur chain is resumed.
+ *
+ * @author Tim Boudreau
+ */
+final class PendingResult {
+
+    final Object result;
+    final Throwable thrown;
+    final HttpResponseStatus status;
+
+    private PendingResult(Object result, Throwable thrown, HttpResponseStatus status) {
+        this.result = result;
+        this.thrown = thrown;
+        this.status = status;
+    }
+
+    /**
+     * Resume the deferred request when the future completes, cancelling it if
+     * the deadline expires or the channel is closed first.
+     */
+    static void await(CompletableFuture<?> future, Deadline deadline, Channel channel, Resumer resumer) {
+        boolean[] expired = new boolean[1];
+        ScheduledFuture<?> timer = null;
+        if (deadline.isBounded()) {
+            timer = channel.eventLoop().schedule(() -> {
+                expired[0] = true;
+                future.cancel(true);
+            }, deadline.remainingNanos(), NANOSECONDS);
+        }
+        // Nobody will read the answer, so stop the work that computes it
+        ChannelFutureListener onClose = f -> future.cancel(true);
+        channel.closeFuture().addListener(onClose);
+        ScheduledFuture<?> t = timer;
+        future.whenComplete((result, thrown) -> {
+            if (t != null) {
+                t.cancel(false);
+            }
+            channel.closeFuture().removeListener(onClose);
+            if (thrown instanceof CompletionException && thrown.getCause() != null) {
+                thrown = thrown.getCause();
+            }
+            if (thrown instanceof CancellationException) {
+                resumer.resume(new PendingResult(null, null, expired[0] ? GATEWAY_TIMEOUT : SERVICE_UNAVAILABLE));
+            } else {
+                resumer.resume(new PendingResult(result, thrown, null));
+            }
+        });
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one phase of handling a request. Only referenced
+ * once RequestTimings has determined that JFR is present in the JVM.
+ *
+ * @author Tim Boudreau
+ */
+@Name("com.mastfrog.pectin.Phase")
+@Label("Pectin Request Phase")
+@Category({"Pectin", "HTTP"})
+@Description("Time spent in one phase of handling an HTTP request")
+@StackTrace(false)
+final class PhaseEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(PhaseEvent.class);
+
+    @Label("Phase")
+    String phase;
+
+    @Label("HTTP Method")
+    String method;
+
+    @Label("Route")
+    @Description("The route template the request matched")
+    String route;
+
+    static boolean recording() {
+        return TYPE.isEnabled();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.server.PipelineDecorator;
+import com.mastfrog.acteur.util.HttpMethod;
+import com.mastfrog.pectin.App.Appliable;
+import com.mastfrog.pectin.App.EachTypedContent;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Adds Pectin's handlers ahead of Acteur's HttpObjectAggregator in each new
+ * connection's pipeline, so they see requests before their bodies are
+ * buffered: body limits, holding back <code>postEach()</code> and proxied
+ * bodies until their route is admitted, and timing of body aggregation. Response writes
+ * are timed, and admission permits held until a response starts are
+ * released, from just after the response encoder; with buffer diagnostics
+ * on, each channel's allocator is wrapped so buffers are tagged with their
+ * route when allocated.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class PipelineHooks implements PipelineDecorator {
+
+    final App app;
+    final ObjectMapper mapper;
+    private final String[] paths;
+    private final PathPatterns patterns;
+
+    @Inject
+    PipelineHooks(App app, ObjectMapper mapper, @Named("paths") String[] paths, PathPatterns patterns) {
+        this.app = app;
+        this.mapper = mapper;
+        this.paths = paths;
+        this.patterns = patterns;
+    }
+
+    static boolean needed(App app) {
+        return !app.bodyLimitsForPath.isEmpty() || app.streamingRoutes || BufferDiagnostics.enabled()
+                || RequestTimings.available(app.serverTiming) || app.admissionEnabled();
+    }
+
+    @Override
+    public void onCreatePipeline(ChannelPipeline pipeline) {
+        if (BufferDiagnostics.enabled()) {
+            BufferDiagnostics.tagAllocations(pipeline.channel());
+        }
+    }
+
+    @Override
+    public void onPipelineInitialized(ChannelPipeline pipeline) {
+        ChannelHandlerContext aggregator = pipeline.context(HttpObjectAggregator.class);
+        if (aggregator == null) {
+            return;
+        }
+        // Limits go first, so a refused body is never parsed
+        if (!app.bodyLimitsForPath.isEmpty()) {
+            pipeline.addBefore(aggregator.name(), "pectin-body-limits", new BodyLimits.Enforcer(this));
+        }
+        if (app.streamingRoutes) {
+            pipeline.addBefore(aggregator.name(), "pectin-streamed-body", new StreamedBody.Handler(this));
+        }
+        boolean timing = RequestTimings.available(app.serverTiming);
+        if (timing) {
+            pipeline.addBefore(aggregator.name(), "pectin-aggregate-timing", new AggregateTiming(app.serverTiming));
+        }
+        ChannelHandlerContext encoder = pipeline.context(HttpResponseEncoder.class);
+        if (encoder == null) {
+            encoder = pipeline.context(HttpServerCodec.class);
+        }
+        if (encoder != null) {
+            // Right after the encoder, so they see response objects
+            // rather than bytes
+            if (timing) {
+                pipeline.addAfter(encoder.name(), "pectin-write-timing", new WriteTiming());
+            }
+            if (app.admissionEnabled()) {
+                pipeline.addAfter(encoder.name(), "pectin-admission", new Admission.ResponseStarted());
+            }
+        }
+    }
+
+    /**
+     * Find the route template for a request URI, matching routes in the same
+     * order CheckMethods does.
+     *
+     * @return A route or null
+     */
+    String routeFor(String uri) {
+        // Absolute-form targets (POST http://host/upload) must match too,
+        // or their limits would not be enforced until after aggregation
+        String path = TypedParameters.requestPath(uri);
+        for (String test : paths) {
+            Pattern p = patterns.patternFor(test, new HashMap<>(4));
+            if (p.matcher(path).find()) {
+                return test;
+            }
+        }
+        return null;
+    }
+
+    BodyLimits limitsFor(String uri) {
+        String route = routeFor(uri);
+        // get() on a supplier map would create empty limits
+        return route != null && app.bodyLimitsForPath.containsKey(route) ? app.bodyLimitsForPath.get(route) : null;
+    }
+
+    /**
+     * Times how long a request's body takes to arrive, from its head to its
+     * last chunk, and leaves that on the channel for CheckMethods.
+     */
+    static final class AggregateTiming extends ChannelInboundHandlerAdapter {
+
+        private final boolean serverTiming;
+        private RequestTimings.Early current;
+
+        AggregateTiming(boolean serverTiming) {
+            this.serverTiming = serverTiming;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest && !(msg instanceof LastHttpContent)) {
+                current = RequestTimings.early(RequestTimings.AGGREGATE, serverTiming);
+            }
+            if (msg instanceof LastHttpContent && current != null) {
+                current.end();
+                ctx.channel().attr(RequestTimings.AGGREGATED).set(current);
+                current = null;
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    /**
+     * Times the write of a response, from its head being written to the
+     * write of its last chunk completing.
+     */
+    static final class WriteTiming extends ChannelOutboundHandlerAdapter {
+
+        private RequestTimings writing;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse) {
+                RequestTimings timings = ctx.channel().attr(RequestTimings.CURRENT).getAndSet(null);
+                if (timings != null && timings.recording()) {
+                    timings.begin(RequestTimings.WRITE);
+                    writing = timings;
+                }
+            }
+            if (msg instanceof LastHttpContent && writing != null) {
+                RequestTimings timings = writing;
+                writing = null;
+                promise.addListener(f -> timings.end());
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    /**
+     * Whether the route a request goes to reads its body as it arrives, so it
+     * should be held back from the aggregator for it.
+     */
+    boolean streams(HttpRequest request) {
+        Appliable appliable = appliableFor(request);
+        return appliable instanceof EachTypedContent<?> || appliable instanceof App.ProxyRoute;
+    }
+
+    Appliable appliableFor(HttpRequest request) {
+        String route = routeFor(request.uri());
+        if (route == null || !app.methodsForPath.containsKey(route)) {
+            return null;
+        }
+        String method = request.method().name();
+        for (Map.Entry<HttpMethod, Appliable> e : app.methodsForPath.get(route).entrySet()) {
+            if (method.equals(e.getKey().name())) {
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import static com.mastfrog.pectin.App.deadline;
+import static com.mastfrog.pectin.App.get;
+import static com.mastfrog.pectin.App.path;
+import static com.mastfrog.pectin.App.proxy;
+import static com.mastfrog.pectin.App.put;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runnable check of <code>App.proxy()</code> against a second App on
+ * loopback standing in for the upstream server: keep-alive reuse of client
+ * and upstream connections, a large body relayed to a client which asked
+ * for <code>Connection: close</code>, a chunked upload sent only after
+ * <code>100 Continue</code>, an upstream which hangs up without answering,
+ * and one which outlives the route's deadline. Run with an optional base port; exits with an
+ * AssertionError on the first failure.
+ *
+ * @author Tim Boudreau
+ */
+public class ProxyCheck {
+
+    private static final int BIG = 8 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8194;
+        int upstreamPort = port + 1;
+        byte[] big = new byte[BIG];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) ('a' + (i % 26));
+        }
+        App upstream = App.create().port(upstreamPort);
+        upstream.routes(() -> {
+            path("hello", () -> {
+                get(() -> "hello");
+            });
+            path("port", () -> {
+                // Which upstream connection served this request
+                get((App.JustEvent) evt -> Integer.toString(((InetSocketAddress) evt.channel().remoteAddress()).getPort()));
+            });
+            path("big", () -> {
+                get(() -> big);
+            });
+            path("hangup", () -> {
+                get((App.JustEvent) evt -> {
+                    evt.channel().close();
+                    return new CompletableFuture<>();
+                });
+            });
+            path("upload", () -> {
+                put((App.JustEvent) evt -> Integer.toString(evt.content().readableBytes()));
+            });
+            path("slow", () -> {
+                // Never answers; cancelled when the proxy gives up on it
+                get((App.JustEvent) evt -> new CompletableFuture<>());
+            });
+        });
+        String upstreamUrl = "http://localhost:" + upstreamPort;
+        App front = App.create().port(port);
+        front.routes(() -> {
+            for (String p : new String[]{"hello", "port", "big", "hangup", "upload"}) {
+                path(p, () -> {
+                    proxy(upstreamUrl, 2);
+                });
+            }
+            path("slow", () -> {
+                deadline(Duration.ofMillis(300));
+                proxy(upstreamUrl, 2);
+            });
+        });
+        ReusePortListeners upstreamServer = ReusePortListeners.start(1, upstreamPort, upstream.pipelineFactory());
+        ReusePortListeners proxyServer = ReusePortListeners.start(1, port, front.pipelineFactory());
+        try {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                OutputStream out = socket.getOutputStream();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+
+                Response hello = request(out, in, "hello", true);
+                check(hello.status == 200 && "hello".equals(hello.text()), "Bad response to /hello: " + hello);
+
+                Response first = request(out, in, "port", true);
+                Response second = request(out, in, "port", true);
+                check(first.status == 200 && second.status == 200, "Bad response to /port: " + first + ", " + second);
+                check(first.text().equals(second.text()), "Upstream connection not reused: "
+                        + first.text() + " then " + second.text());
+
+                Response bigKeepAlive = request(out, in, "big", true);
+                check(bigKeepAlive.status == 200 && Arrays.equals(big, bigKeepAlive.body),
+                        "Large body mangled on a keep-alive connection: " + bigKeepAlive);
+
+                // Kept under the upstream's aggregation limit
+                byte[] uploaded = Arrays.copyOf(big, 512 * 1024);
+                Response upload = upload(out, in, "upload", uploaded);
+                check(upload.status == 200 && Integer.toString(uploaded.length).equals(upload.text()),
+                        "Streamed upload mangled: " + upload);
+
+                Response hangup = request(out, in, "hangup", true);
+                check(hangup.status == 502, "Expected 502 when the upstream hangs up, got " + hangup);
+
+                // The client connection and the pool both survive that
+                Response after = request(out, in, "hello", true);
+                check(after.status == 200 && "hello".equals(after.text()), "Bad response after upstream hangup: " + after);
+
+                Response slow = request(out, in, "slow", true);
+                check(slow.status == 504, "Expected 504 when the upstream outlives the deadline, got " + slow);
+                Response afterSlow = request(out, in, "hello", true);
+                check(afterSlow.status == 200 && "hello".equals(afterSlow.text()), "Bad response after upstream timeout: " + afterSlow);
+            }
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                OutputStream out = socket.getOutputStream();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                Response bigClose = request(out, in, "big", false);
+                check(bigClose.status == 200 && Arrays.equals(big, bigClose.body),
+                        "Large body truncated for a Connection: close client - got "
+                        + bigClose.body.length + " of " + big.length + " bytes");
+                check(in.read() < 0, "Connection not closed after Connection: close response");
+            }
+            System.out.println("ok");
+        } finally {
+            front.stop();
+            proxyServer.shutdown();
+            upstream.stop();
+            upstreamServer.shutdown();
+        }
+        System.exit(0);
+    }
+
+    private static Response request(OutputStream out, InputStream in, String path, boolean keepAlive) throws IOException {
+        out.write(("GET /" + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: "
+                + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(US_ASCII));
+        out.flush();
+        return response(in, keepAlive);
+    }
+
+    private static Response upload(OutputStream out, InputStream in, String path, byte[] body) throws IOException {
+        out.write(("PUT /" + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n"
+                + "Transfer-Encoding: chunked\r\nExpect: 100-continue\r\n\r\n").getBytes(US_ASCII));
+        out.flush();
+        Response interim = response(in, true);
+        if (interim.status != 100) {
+            return interim;
+        }
+        for (int offset = 0; offset < body.length; offset += 65536) {
+            int size = Math.min(65536, body.length - offset);
+            out.write((Integer.toHexString(size) + "\r\n").getBytes(US_ASCII));
+            out.write(body, offset, size);
+            out.write("\r\n".getBytes(US_ASCII));
+        }
+        out.write("0\r\n\r\n".getBytes(US_ASCII));
+        out.flush();
+        return response(in, true);
+    }
+
+    private static Response response(InputStream in, boolean keepAlive) throws IOException {
+        String statusLine = readLine(in);
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Bad status line '" + statusLine + "'");
+        }
+        int status = Integer.parseInt(parts[1]);
+        int contentLength = -1;
+        boolean chunked = false;
+        for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+            header = header.toLowerCase();
+            if (header.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            } else if (header.startsWith("transfer-encoding:") && header.contains("chunked")) {
+                chunked = true;
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked) {
+            int size;
+            do {
+                size = Integer.parseInt(readLine(in).trim(), 16);
+                copy(in, body, size);
+                readLine(in);
+            } while (size > 0);
+        } else if (contentLength >= 0) {
+            copy(in, body, contentLength);
+        } else if (!keepAlive) {
+            for (int c = in.read(); c >= 0; c = in.read()) {
+                body.write(c);
+            }
+        }
+        return new Response(status, body.toByteArray());
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new IOException("Connection closed after '" + sb + "'");
+            } else if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void copy(InputStream in, OutputStream out, int bytes) throws IOException {
+        byte[] buf = new byte[8192];
+        while (bytes > 0) {
+            int count = in.read(buf, 0, Math.min(buf.length, bytes));
+            if (count < 0) {
+                break;
+            }
+            out.write(buf, 0, count);
+            bytes -= count;
+        }
+    }
+
+    private static void check(boolean test, String msg) {
+        if (!test) {
+            throw new AssertionError(msg);
+        }
+    }
+
+    private static final class Response {
+
+        private final int status;
+        private final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        String text() {
+            return new String(body, US_ASCII);
+        }
+
+        @Override
+        public String toString() {
+            return status + " with " + body.length + " bytes";
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import io.netty.util.AttributeKey;
+import java.util.Locale;
+
+/**
+ * Records how long each phase of a request took, as Flight Recorder events
+ * and/or for a <code>Server-Timing</code> response header. Instances are only
+ * created when one of those is turned on, so when neither is, the cost is a
+ * null check per phase.
+ *
+ * @author Tim Boudreau
+ */
+final class RequestTimings {
+
+    static final String AGGREGATE = "aggregate";
+    static final String ROUTE = "route";
+    static final String QUEUE = "queue";
+    static final String HANDLER = "handler";
+    static final String AWAIT = "await";
+    static final String SERIALIZE = "serialize";
+    static final String WRITE = "write";
+    /**
+     * The timings of the request a channel is currently answering, for
+     * timing the write of its response.
+     */
+    static final AttributeKey<RequestTimings> CURRENT = AttributeKey.valueOf("pectin-timings");
+    /**
+     * How long the body of the request about to be routed took to arrive.
+     */
+    static final AttributeKey<Early> AGGREGATED = AttributeKey.valueOf("pectin-aggregated");
+    private static final boolean JFR_PRESENT = jfrPresent();
+    private final boolean jfr;
+    private final boolean serverTiming;
+    private final StringBuilder header;
+    private String method;
+    private String route;
+    private String phase;
+    private long phaseStart;
+    private PhaseEvent event;
+
+    private RequestTimings(boolean jfr, boolean serverTiming) {
+        this.jfr = jfr;
+        this.serverTiming = serverTiming;
+        this.header = serverTiming ? new StringBuilder(64) : null;
+    }
+
+    static RequestTimings create(boolean serverTiming) {
+        boolean jfr = JFR_PRESENT && PhaseEvent.recording();
+        return jfr || serverTiming ? new RequestTimings(jfr, serverTiming) : null;
+    }
+
+    static boolean available(boolean serverTiming) {
+        return serverTiming || JFR_PRESENT;
+    }
+
+    private static boolean jfrPresent() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    RequestTimings route(String method, String route) {
+        this.method = method;
+        this.route = route;
+        return this;
+    }
+
+    // Phases may begin and end on different threads, but never concurrently
+    synchronized void begin(String phase) {
+        this.phase = phase;
+        phaseStart = System.nanoTime();
+        if (jfr) {
+            event = new PhaseEvent();
+            event.begin();
+        }
+    }
+
+    synchronized void end() {
+        if (phase == null) {
+            return;
+        }
+        if (serverTiming) {
+            appendHeader(phase, System.nanoTime() - phaseStart);
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase;
+                event.method = method;
+                event.route = route;
+                event.commit();
+            }
+            event = null;
+        }
+        phase = null;
+    }
+
+    private void appendHeader(String phase, long nanos) {
+        if (header.length() > 0) {
+            header.append(", ");
+        }
+        header.append(phase).append(";dur=").append(String.format(Locale.ROOT, "%.3f", nanos / 1000000D));
+    }
+
+    /**
+     * Add a phase which was timed before this request's route was known.
+     */
+    synchronized void add(Early early) {
+        if (serverTiming) {
+            appendHeader(early.phase, early.end - early.start);
+        }
+        if (early.event != null) {
+            if (early.event.shouldCommit()) {
+                early.event.phase = early.phase;
+                early.event.method = method;
+                early.event.route = route;
+                early.event.commit();
+            }
+        }
+    }
+
+    /**
+     * Whether phases are being recorded as Flight Recorder events; the write
+     * phase ends after the Server-Timing header has been sent, so it is only
+     * worth timing if they are.
+     */
+    boolean recording() {
+        return jfr;
+    }
+
+    static Early early(String phase, boolean serverTiming) {
+        boolean jfr = JFR_PRESENT && PhaseEvent.recording();
+        return jfr || serverTiming ? new Early(phase, jfr) : null;
+    }
+
+    /**
+     * A phase timed by a pipeline handler, before Acteur has a request
+     * event to route.
+     */
+    static final class Early {
+
+        final String phase;
+        final long start = System.nanoTime();
+        private final PhaseEvent event;
+        long end;
+
+        Early(String phase, boolean jfr) {
+            this.phase = phase;
+            this.event = jfr ? new PhaseEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        void end() {
+            end = System.nanoTime();
+            if (event != null) {
+                event.end();
+            }
+        }
+    }
+
+    synchronized String serverTimingHeader() {
+        return serverTiming && header.length() > 0 ? header.toString() : null;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import static com.mastfrog.pectin.App.get;
+import static com.mastfrog.pectin.App.path;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback benchmark of connection rate and keep-alive throughput against
+ * one, two, four... SO_REUSEPORT listeners, up to the number of cores. Run
+ * with optional arguments <code>port seconds clientThreads</code>.
+ *
+ * @author Tim Boudreau
+ */
+public class ReusePortBenchmark {
+
+    private static final byte[] CLOSE_REQUEST = ("GET /bench HTTP/1.1\r\nHost: localhost\r\n"
+            + "Connection: close\r\n\r\n").getBytes(US_ASCII);
+    private static final byte[] KEEP_ALIVE_REQUEST = ("GET /bench HTTP/1.1\r\nHost: localhost\r\n"
+            + "Connection: keep-alive\r\n\r\n").getBytes(US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8193;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : cores * 4;
+        System.out.println("listeners\tconnections/sec\trequests/sec (keep-alive)");
+        for (int listeners = 1; listeners <= cores; listeners *= 2) {
+            App app = App.create().port(port);
+            app.routes(() -> {
+                path("bench", () -> {
+                    get(() -> "ok");
+                });
+            });
+            // Every data point, including a single listener, uses the same
+            // epoll transport and thread split, so only the listener count
+            // varies
+            ReusePortListeners servers = ReusePortListeners.start(listeners, port, app.pipelineFactory());
+            try {
+                // warm up
+                run(port, 1, clients, false);
+                double connectionRate = run(port, seconds, clients, false);
+                double requestRate = run(port, seconds, clients, true);
+                System.out.println(String.format("%d\t%.1f\t%.1f", listeners, connectionRate, requestRate));
+            } finally {
+                servers.shutdown();
+                app.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static double run(int port, int seconds, int clients, boolean keepAlive) throws InterruptedException {
+        AtomicLong completed = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    if (keepAlive) {
+                        keepAliveClient(port, end, completed);
+                    } else {
+                        connectingClient(port, end, completed);
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            });
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1000000000D;
+        return completed.get() / elapsed;
+    }
+
+    private static void connectingClient(int port, long end, AtomicLong completed) throws IOException {
+        while (System.nanoTime() < end) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setTcpNoDelay(true);
+                socket.getOutputStream().write(CLOSE_REQUEST);
+                readResponse(new BufferedInputStream(socket.getInputStream()));
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    private static void keepAliveClient(int port, long end, AtomicLong completed) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            while (System.nanoTime() < end) {
+                out.write(KEEP_ALIVE_REQUEST);
+                readResponse(in);
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    private static void readResponse(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int contentLength = -1;
+        boolean chunked = false;
+        for (;;) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("Connection closed in headers");
+            } else if (c == '\n') {
+                if (line.length() == 0) {
+                    break;
+                }
+                String header = line.toString().toLowerCase();
+                if (header.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(header.substring(15).trim());
+                } else if (header.startsWith("transfer-encoding:") && header.contains("chunked")) {
+                    chunked = true;
+                }
+                line.setLength(0);
+            } else if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (chunked) {
+            int size;
+            do {
+                size = Integer.parseInt(readLine(in).trim(), 16);
+                skip(in, size);
+                readLine(in);
+            } while (size > 0);
+        } else if (contentLength >= 0) {
+            skip(in, contentLength);
+        } else {
+            while (in.read() >= 0) {
+                // read until close
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c = in.read(); c >= 0 && c != '\n'; c = in.read()) {
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void skip(InputStream in, int bytes) throws IOException {
+        for (int i = 0; i < bytes; i++) {
+            if (in.read() < 0) {
+                throw new IOException("Connection closed in body");
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.mastfrog.util.Exceptions;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several server sockets bound to the same port with SO_REUSEPORT, each with
+ * its own event loop group, all sharing Acteur's pipeline (and so the same
+ * application and route table).
+ *
+ * @author Tim Boudreau
+ */
+final class ReusePortListeners {
+
+    private final List<EventLoopGroup> groups = new ArrayList<>();
+    private final List<Channel> channels = new ArrayList<>();
+
+    private ReusePortListeners() {
+    }
+
+    static ReusePortListeners start(int count, int port, ChannelInitializer<SocketChannel> initializer) throws InterruptedException {
+        if (!Epoll.isAvailable()) {
+            throw new IllegalStateException("Multiple listeners require the native "
+                    + "epoll transport", Epoll.unavailabilityCause());
+        }
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / count);
+        ReusePortListeners result = new ReusePortListeners();
+        try {
+            for (int i = 0; i < count; i++) {
+                EventLoopGroup group = new EpollEventLoopGroup(threads, new DefaultThreadFactory("pectin-listener-" + i));
+                result.groups.add(group);
+                // One group both accepts and services connections, so each
+                // listener's connections stay on its own threads
+                ServerBootstrap bootstrap = new ServerBootstrap()
+                        .group(group)
+                        .channel(EpollServerSocketChannel.class)
+                        .option(EpollChannelOption.SO_REUSEPORT, true)
+                        .option(ChannelOption.SO_BACKLOG, 1024)
+                        .childOption(ChannelOption.TCP_NODELAY, true)
+                        .childHandler(initializer);
+                result.channels.add(bootstrap.bind(port).sync().channel());
+            }
+        } catch (Exception ex) {
+            // bind failures are rethrown sneakily by sync()
+            result.shutdown();
+            return Exceptions.chuck(ex);
+        }
+        return result;
+    }
+
+    void shutdown() throws InterruptedException {
+        for (Channel channel : channels) {
+            channel.close().await();
+        }
+        for (EventLoopGroup group : groups) {
+            group.shutdownGracefully().await();
+        }
+    }
+}
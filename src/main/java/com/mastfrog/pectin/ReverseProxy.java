@@ -0,0 +1,522 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Deferral;
+import com.mastfrog.acteur.Deferral.Resumer;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteurbase.Chain;
+import com.mastfrog.pectin.PectinActeurApplication.AppliableWrapper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.pool.FixedChannelPool.AcquireTimeoutAction;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
+import static io.netty.handler.codec.http.HttpResponseStatus.GATEWAY_TIMEOUT;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import java.util.concurrent.TimeoutException;
+import javax.inject.Inject;
+
+/**
+ * Forwards requests to an upstream HTTP server, registered with
+ * <code>App.proxy()</code>. Upstream connections are kept alive and pooled per
+ * event loop, and run on the same event loop as the client connection they
+ * serve. Request bodies from clients are held back from the aggregator and
+ * relayed to the upstream as they arrive, and the upstream response body to
+ * the client, in each case pausing reads from the sender while the receiver
+ * is not keeping up.
+ *
+ * @author Tim Boudreau
+ */
+final class ReverseProxy {
+
+    private static final AttributeKey<Exchange> EXCHANGE = AttributeKey.valueOf("pectin-proxy-exchange");
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization",
+            "te", "trailer", "transfer-encoding", "upgrade", "host", "content-length",
+            // The client is told to continue once the upstream connection is
+            // ready, so the upstream has nothing to say before its response
+            "expect"));
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 10000;
+    private static EventLoopGroup fallbackGroup;
+
+    private ReverseProxy() {
+        throw new AssertionError();
+    }
+
+    /**
+     * The upstream server for one proxy route, with a bounded pool of
+     * keep-alive connections per event loop.
+     */
+    static final class Upstream {
+
+        private final String host;
+        private final int port;
+        private final String basePath;
+        private final int maxConnections;
+        private final Map<EventLoop, FixedChannelPool> pools = new ConcurrentHashMap<>();
+
+        Upstream(String url, int maxConnections) {
+            URI uri = URI.create(url);
+            if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+                throw new IllegalArgumentException("Only http:// upstream URLs are supported: " + url);
+            }
+            this.host = uri.getHost();
+            this.port = uri.getPort() == -1 ? 80 : uri.getPort();
+            String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+            this.basePath = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            this.maxConnections = maxConnections;
+        }
+
+        private FixedChannelPool pool(EventLoop loop) {
+            return pools.computeIfAbsent(loop, this::newPool);
+        }
+
+        private FixedChannelPool newPool(EventLoop loop) {
+            Bootstrap bootstrap = new Bootstrap().remoteAddress(host, port);
+            if (loop.parent() instanceof EpollEventLoopGroup) {
+                bootstrap.group(loop).channel(EpollSocketChannel.class);
+            } else if (loop.parent() instanceof NioEventLoopGroup) {
+                bootstrap.group(loop).channel(NioSocketChannel.class);
+            } else {
+                // e.g. the in-process client's loops, which cannot host
+                // socket channels
+                bootstrap.group(fallbackGroup()).channel(NioSocketChannel.class);
+            }
+            return new FixedChannelPool(bootstrap, new AbstractChannelPoolHandler() {
+                @Override
+                public void channelCreated(Channel ch) {
+                    ch.pipeline().addLast("codec", new HttpClientCodec());
+                    ch.pipeline().addLast("relay", new Relay());
+                }
+            }, ChannelHealthChecker.ACTIVE, AcquireTimeoutAction.FAIL, ACQUIRE_TIMEOUT_MILLIS,
+                    maxConnections, maxConnections * 4);
+        }
+
+        void close() {
+            for (FixedChannelPool pool : pools.values()) {
+                pool.close();
+            }
+            pools.clear();
+        }
+
+        void send(HttpEvent evt, Exchange exchange) throws Exception {
+            StreamedBody body = exchange.body;
+            HttpRequest request;
+            if (body == null) {
+                // In-process and batch requests, and those without a body,
+                // arrive aggregated
+                request = new DefaultFullHttpRequest(HTTP_1_1, evt.request().method(),
+                        basePath + evt.request().uri(), evt.content().retainedDuplicate());
+                copyHeaders(evt.request().headers(), request.headers());
+                HttpUtil.setContentLength(request, evt.content().readableBytes());
+            } else {
+                request = new DefaultHttpRequest(HTTP_1_1, body.head.method(), basePath + body.head.uri());
+                copyHeaders(body.head.headers(), request.headers());
+                if (HttpUtil.isContentLengthSet(body.head) && !HttpUtil.isTransferEncodingChunked(body.head)) {
+                    HttpUtil.setContentLength(request, HttpUtil.getContentLength(body.head));
+                } else {
+                    HttpUtil.setTransferEncodingChunked(request, true);
+                }
+            }
+            request.headers().set(HttpHeaderNames.HOST, port == 80 ? host : host + ":" + port);
+            HttpUtil.setKeepAlive(request, true);
+            if (evt.channel().remoteAddress() instanceof InetSocketAddress) {
+                String client = ((InetSocketAddress) evt.channel().remoteAddress()).getAddress().getHostAddress();
+                String prior = request.headers().get("X-Forwarded-For");
+                request.headers().set("X-Forwarded-For", prior == null ? client : prior + ", " + client);
+            }
+            FixedChannelPool pool = pool(evt.channel().eventLoop());
+            pool.acquire().addListener(f -> {
+                if (!f.isSuccess()) {
+                    ReferenceCountUtil.release(request);
+                    exchange.fail(f.cause() instanceof TimeoutException ? GATEWAY_TIMEOUT : BAD_GATEWAY);
+                    return;
+                }
+                Channel upstream = (Channel) f.getNow();
+                if (!exchange.upstream(upstream, pool)) {
+                    // Timed out or abandoned while waiting for a connection
+                    ReferenceCountUtil.release(request);
+                    return;
+                }
+                upstream.writeAndFlush(request).addListener(wf -> {
+                    if (!wf.isSuccess()) {
+                        exchange.fail(BAD_GATEWAY);
+                    }
+                });
+                if (body != null) {
+                    body.start(exchange::sendBody);
+                }
+            });
+        }
+    }
+
+    private static synchronized EventLoopGroup fallbackGroup() {
+        if (fallbackGroup == null) {
+            fallbackGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("pectin-proxy", true));
+        }
+        return fallbackGroup;
+    }
+
+    static void copyHeaders(HttpHeaders from, HttpHeaders to) {
+        for (Map.Entry<String, String> e : from) {
+            if (!HOP_BY_HOP.contains(e.getKey().toLowerCase())) {
+                to.add(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * State of one proxied request, shared between the upstream channel's
+     * relay handler and the acteurs answering the client.
+     */
+    static final class Exchange {
+
+        private final Resumer resumer;
+        private final boolean clientKeepAlive;
+        private final Queue<HttpContent> pending = new ArrayDeque<>();
+        // If the client goes away first, give back the upstream connection
+        private final ChannelFutureListener onClientClose = f -> fail(BAD_GATEWAY);
+        private Channel client;
+        private Channel upstream;
+        private FixedChannelPool pool;
+        private Channel downstream;
+        private boolean resumed;
+        private boolean done;
+        private ScheduledFuture<?> timer;
+        private boolean bodySent;
+        final StreamedBody body;
+        HttpResponse head;
+        HttpResponseStatus failure;
+
+        Exchange(Resumer resumer, boolean clientKeepAlive, StreamedBody body) {
+            this.resumer = resumer;
+            this.clientKeepAlive = clientKeepAlive;
+            this.body = body;
+        }
+
+        void watch(Channel client) {
+            synchronized (this) {
+                this.client = client;
+            }
+            client.closeFuture().addListener(onClientClose);
+        }
+
+        /**
+         * Answer the client with a 504 if the upstream has not sent its
+         * response head within the route's deadline.
+         */
+        synchronized void expireAfter(Deadline deadline, EventLoop loop) {
+            if (deadline.isBounded() && !resumed) {
+                timer = loop.schedule(() -> fail(GATEWAY_TIMEOUT), deadline.remainingNanos(), NANOSECONDS);
+            }
+        }
+
+        synchronized boolean upstream(Channel upstream, FixedChannelPool pool) {
+            if (done) {
+                pool.release(upstream);
+                return false;
+            }
+            this.upstream = upstream;
+            this.pool = pool;
+            upstream.attr(EXCHANGE).set(this);
+            return true;
+        }
+
+        void onHead(HttpResponse head) {
+            synchronized (this) {
+                if (resumed) {
+                    return;
+                }
+                this.head = head;
+                resumed = true;
+                cancelTimer();
+            }
+            resumer.resume(this);
+        }
+
+        private void cancelTimer() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+        }
+
+        void fail(HttpResponseStatus status) {
+            boolean resume;
+            Channel client;
+            synchronized (this) {
+                resume = !resumed;
+                resumed = true;
+                failure = status;
+                client = downstream;
+                release(false);
+            }
+            if (resume) {
+                resumer.resume(this);
+            } else if (client != null) {
+                // Headers already went out - all we can do is hang up
+                client.close();
+            }
+        }
+
+        /**
+         * Relay a chunk of the client's request body to the upstream, on the
+         * client's event loop.
+         */
+        void sendBody(HttpContent content, boolean last) {
+            Channel up;
+            synchronized (this) {
+                if (done) {
+                    content.release();
+                    return;
+                }
+                up = upstream;
+                if (last) {
+                    bodySent = true;
+                }
+            }
+            Channel client = body.channel();
+            up.writeAndFlush(content).addListener(f -> {
+                if (!f.isSuccess()) {
+                    fail(BAD_GATEWAY);
+                } else if (!last && up.isWritable()) {
+                    client.config().setAutoRead(true);
+                }
+            });
+            if (!last && !up.isWritable()) {
+                // Stop reading from the client until the upstream catches up
+                client.config().setAutoRead(false);
+            }
+        }
+
+        synchronized void onContent(HttpContent content) {
+            if (downstream == null) {
+                pending.add(content);
+            } else {
+                relay(content);
+            }
+        }
+
+        synchronized void attach(Channel downstream) {
+            this.downstream = downstream;
+            for (HttpContent content = pending.poll(); content != null; content = pending.poll()) {
+                relay(content);
+            }
+        }
+
+        private void relay(HttpContent content) {
+            boolean last = content instanceof LastHttpContent;
+            Channel up = upstream;
+            ChannelFuture written = downstream.writeAndFlush(content).addListener(f -> {
+                if (!f.isSuccess()) {
+                    fail(BAD_GATEWAY);
+                } else if (!last && up != null && downstream.isWritable()) {
+                    up.config().setAutoRead(true);
+                }
+            });
+            if (last) {
+                release(HttpUtil.isKeepAlive(head));
+                if (!clientKeepAlive) {
+                    // Only once the write is done, or the tail is lost
+                    written.addListener(ChannelFutureListener.CLOSE);
+                }
+            } else if (up != null && !downstream.isWritable()) {
+                // Stop reading from the upstream until the client catches up
+                up.config().setAutoRead(false);
+            }
+        }
+
+        private void release(boolean reusable) {
+            if (done) {
+                return;
+            }
+            done = true;
+            cancelTimer();
+            if (body != null) {
+                // Drops whatever of it is still to come
+                body.abandon();
+                if (!bodySent) {
+                    // The upstream is still waiting for the rest of it
+                    reusable = false;
+                }
+            }
+            if (client != null) {
+                client.closeFuture().removeListener(onClientClose);
+            }
+            for (HttpContent content = pending.poll(); content != null; content = pending.poll()) {
+                content.release();
+            }
+            if (upstream != null) {
+                upstream.attr(EXCHANGE).set(null);
+                upstream.config().setAutoRead(true);
+                if (!reusable) {
+                    upstream.close();
+                }
+                pool.release(upstream);
+            }
+        }
+    }
+
+    /**
+     * Hands what the upstream sends to the exchange it is currently serving.
+     */
+    static final class Relay extends ChannelInboundHandlerAdapter {
+
+        private boolean informational;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+            if (exchange == null) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            // Skip interim 1xx responses and the empty content that ends
+            // them; the final response follows
+            if (msg instanceof HttpResponse && ((HttpResponse) msg).status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                informational = !(msg instanceof LastHttpContent);
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (informational && msg instanceof HttpContent) {
+                informational = !(msg instanceof LastHttpContent);
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (msg instanceof HttpResponse) {
+                exchange.onHead((HttpResponse) msg);
+            }
+            if (msg instanceof HttpContent) {
+                exchange.onContent((HttpContent) msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+            if (exchange != null) {
+                exchange.fail(BAD_GATEWAY);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+            if (exchange != null) {
+                exchange.fail(BAD_GATEWAY);
+            }
+            ctx.channel().close();
+        }
+    }
+
+    static final class ProxyActeur extends Acteur {
+
+        @Inject
+        ProxyActeur(HttpEvent evt, AppliableWrapper wrapper, Deferral deferral, Chain<Acteur, ? extends Chain<Acteur, ?>> chain) throws Exception {
+            Upstream upstream = ((App.ProxyRoute) wrapper.toApply).upstream;
+            // Held back by PipelineHooks until now, when the request has
+            // been admitted
+            StreamedBody body = evt.channel().attr(StreamedBody.KEY).getAndSet(null);
+            Exchange exchange = new Exchange(deferral.defer(), HttpUtil.isKeepAlive(evt.request()), body);
+            exchange.watch(evt.channel());
+            exchange.expireAfter(wrapper.deadline, evt.channel().eventLoop());
+            upstream.send(evt, exchange);
+            chain.add(SendProxiedResponse.class);
+            next();
+        }
+    }
+
+    static final class SendProxiedResponse extends Acteur {
+
+        @Inject
+        SendProxiedResponse(Exchange exchange) {
+            if (exchange.failure != null) {
+                reply(exchange.failure);
+                return;
+            }
+            HttpResponse head = exchange.head;
+            for (Map.Entry<String, String> e : head.headers()) {
+                if (!HOP_BY_HOP.contains(e.getKey().toLowerCase())) {
+                    add(Headers.header(e.getKey()), e.getValue());
+                }
+            }
+            if (HttpUtil.isContentLengthSet(head)) {
+                add(Headers.header("Content-Length"), Long.toString(HttpUtil.getContentLength(head)));
+                setChunked(false);
+            } else {
+                setChunked(true);
+            }
+            reply(head.status());
+            setResponseBodyWriter(f -> {
+                if (f.isSuccess()) {
+                    exchange.attach(f.channel());
+                } else {
+                    exchange.fail(BAD_GATEWAY);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.net.MediaType;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.pectin.App.WebSocketMessage;
+import com.mastfrog.pectin.PectinActeurApplication.AppliableWrapper;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpServerCodec;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SWITCHING_PROTOCOLS;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+
+/**
+ * Acteurs which turn a request into a long-lived server-sent-event or
+ * websocket connection subscribed to a Broadcaster.
+ *
+ * @author Tim Boudreau
+ */
+final class ServerPush {
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_FRAME_SIZE = 65536;
+    private static final Logger LOG = Logger.getLogger(ServerPush.class.getName());
+
+    private ServerPush() {
+        throw new AssertionError();
+    }
+
+    static final class ServerSentEvents extends Acteur {
+
+        @Inject
+        ServerSentEvents(AppliableWrapper wrapper, ObjectMapper mapper) {
+            Broadcaster group = ((App.ServerSentEventsRoute) wrapper.toApply).broadcaster;
+            add(Headers.CONTENT_TYPE, MediaType.parse("text/event-stream;charset=utf-8"));
+            add(Headers.header("Cache-Control"), "no-cache");
+            // Events are written as raw buffers, which HttpContentCompressor
+            // passes through untouched; an explicit encoding stops it from
+            // marking the head as compressed
+            add(Headers.header("Content-Encoding"), "identity");
+            setChunked(false);
+            reply(OK);
+            // No body is written here - the connection stays open and
+            // receives whatever is published to the group
+            setResponseBodyWriter(f -> {
+                if (f.isSuccess()) {
+                    group.subscribeServerSentEvents(f.channel(), mapper);
+                }
+            });
+        }
+    }
+
+    static final class WebSocketUpgrade extends Acteur {
+
+        @Inject
+        WebSocketUpgrade(AppliableWrapper wrapper, HttpEvent evt, ObjectMapper mapper, App app) throws Exception {
+            App.WebSocketRoute route = (App.WebSocketRoute) wrapper.toApply;
+            String upgrade = evt.request().headers().get("Upgrade");
+            String key = evt.request().headers().get("Sec-WebSocket-Key");
+            if (!"websocket".equalsIgnoreCase(upgrade) || key == null) {
+                reply(BAD_REQUEST, "Not a websocket upgrade request\n");
+                return;
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            String accept = Base64.getEncoder().encodeToString(
+                    digest.digest((key.trim() + WEBSOCKET_GUID).getBytes(US_ASCII)));
+            add(Headers.header("Upgrade"), "websocket");
+            add(Headers.header("Connection"), "Upgrade");
+            add(Headers.header("Sec-WebSocket-Accept"), accept);
+            setChunked(false);
+            reply(SWITCHING_PROTOCOLS);
+            setResponseBodyWriter(f -> {
+                if (!f.isSuccess()) {
+                    return;
+                }
+                ChannelPipeline pipeline = f.channel().pipeline();
+                // Replace the HTTP codec with websocket framing ahead of
+                // everything else, so frames never reach Acteur's handler
+                pipeline.addFirst("pectin-ws", new WebSocketFrames(route, mapper, app.handlerExecutor()));
+                pipeline.addFirst("pectin-ws-encoder", new WebSocket13FrameEncoder(false));
+                pipeline.addFirst("pectin-ws-decoder", new WebSocket13FrameDecoder(true, false, MAX_FRAME_SIZE));
+                removeIfPresent(pipeline, HttpContentCompressor.class);
+                removeIfPresent(pipeline, HttpObjectAggregator.class);
+                removeIfPresent(pipeline, HttpServerCodec.class);
+                removeIfPresent(pipeline, HttpRequestDecoder.class);
+                removeIfPresent(pipeline, HttpResponseEncoder.class);
+                route.broadcaster.subscribeWebSocket(f.channel(), mapper);
+            });
+        }
+
+        private static void removeIfPresent(ChannelPipeline pipeline, Class<? extends ChannelHandler> type) {
+            if (pipeline.get(type) != null) {
+                pipeline.remove(type);
+            }
+        }
+    }
+
+    static final class WebSocketFrames extends SimpleChannelInboundHandler<WebSocketFrame> {
+
+        private static final int MAX_PENDING_MESSAGES = 16;
+        private final App.WebSocketRoute route;
+        private final ObjectMapper mapper;
+        private final Executor executor;
+        // Both only touched on the event loop
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private int pending;
+
+        WebSocketFrames(App.WebSocketRoute route, ObjectMapper mapper, Executor executor) {
+            this.route = route;
+            this.mapper = mapper;
+            this.executor = executor;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) throws Exception {
+            if (frame instanceof TextWebSocketFrame) {
+                WebSocketMessage onMessage = route.onMessage;
+                if (onMessage != null) {
+                    String text = ((TextWebSocketFrame) frame).text();
+                    // Handlers may block, so they run on worker threads like
+                    // every other handler, chained so a connection's
+                    // messages are handled in order; reading pauses if the
+                    // handler falls behind
+                    if (++pending == MAX_PENDING_MESSAGES) {
+                        ctx.channel().config().setAutoRead(false);
+                    }
+                    tail = tail.thenRunAsync(() -> handle(ctx, onMessage, text), executor);
+                }
+            } else if (frame instanceof PingWebSocketFrame) {
+                ctx.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
+            } else if (frame instanceof CloseWebSocketFrame) {
+                ctx.writeAndFlush(frame.retain()).addListener(f -> ctx.channel().close());
+            }
+        }
+
+        private void handle(ChannelHandlerContext ctx, WebSocketMessage onMessage, String text) {
+            try {
+                if (ctx.channel().isActive()) {
+                    Object reply = onMessage.apply(text);
+                    if (reply != null) {
+                        ctx.writeAndFlush(new TextWebSocketFrame(Broadcaster.encode(reply, mapper)));
+                    }
+                }
+            } catch (Exception ex) {
+                ctx.executor().execute(() -> exceptionCaught(ctx, ex));
+            } finally {
+                ctx.executor().execute(() -> {
+                    if (pending-- == MAX_PENDING_MESSAGES) {
+                        ctx.channel().config().setAutoRead(true);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.log(Level.WARNING, "Websocket handler failed on " + ctx.channel(), cause);
+            if (ctx.channel().isActive()) {
+                // 1011: the server hit an unexpected condition
+                ctx.writeAndFlush(new CloseWebSocketFrame(1011, "Internal error"))
+                        .addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
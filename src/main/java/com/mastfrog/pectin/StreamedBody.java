@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpExpectationFailedEvent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.util.ArrayDeque;
+
+/**
+ * A request body held back ahead of Acteur's aggregator until the route
+ * which will read it has been chosen and admitted. The request's head is
+ * passed on at once with an empty body, so routing, admission and the
+ * route's deadline all apply before anything reads the body (or a client
+ * waiting on it is sent <code>100 Continue</code>); the route then takes the
+ * body from the channel and calls <code>start()</code> with a sink for its
+ * chunks. If a response goes out before that, the body is read and dropped,
+ * or, if the client is still waiting for <code>100 Continue</code>, never
+ * asked for.
+ *
+ * @author Tim Boudreau
+ */
+final class StreamedBody {
+
+    static final AttributeKey<StreamedBody> KEY = AttributeKey.valueOf("pectin-streamed-body");
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(US_ASCII);
+    // How much may arrive before a route starts reading before reads pause
+    private static final int MAX_HELD_BYTES = 65536;
+    final HttpRequest head;
+    private final ChannelHandlerContext ctx;
+    private final boolean expectsContinue;
+    // All below are only touched on the event loop
+    private final ArrayDeque<HttpContent> held = new ArrayDeque<>();
+    private long heldBytes;
+    private boolean paused;
+    private Sink sink;
+    private boolean continued;
+    private boolean abandoned;
+    private boolean complete;
+
+    private StreamedBody(ChannelHandlerContext ctx, HttpRequest head) {
+        this.ctx = ctx;
+        this.head = head;
+        this.expectsContinue = HttpUtil.is100ContinueExpected(head);
+    }
+
+    /**
+     * Receives the chunks of a body on the event loop, and must release them.
+     */
+    interface Sink {
+
+        void onContent(HttpContent content, boolean last);
+    }
+
+    Channel channel() {
+        return ctx.channel();
+    }
+
+    EventLoop eventLoop() {
+        return ctx.channel().eventLoop();
+    }
+
+    /**
+     * Start passing the body to a sink, from any thread; ignored if the body
+     * has been abandoned.
+     */
+    void start(Sink sink) {
+        if (!eventLoop().inEventLoop()) {
+            eventLoop().execute(() -> start(sink));
+            return;
+        }
+        if (abandoned || this.sink != null) {
+            return;
+        }
+        this.sink = sink;
+        if (expectsContinue && !complete) {
+            // Written as bytes, ahead of the encoder - the aggregator, which
+            // would have sent this, never sees the request
+            continued = true;
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(CONTINUE));
+        }
+        if (paused) {
+            paused = false;
+            ctx.channel().config().setAutoRead(true);
+        }
+        for (HttpContent content = held.poll(); content != null && this.sink != null; content = held.poll()) {
+            heldBytes -= content.content().readableBytes();
+            sink.onContent(content, content instanceof LastHttpContent);
+        }
+    }
+
+    /**
+     * Drop the rest of the body, from any thread; the sink is not called
+     * again.
+     */
+    void abandon() {
+        if (!eventLoop().inEventLoop()) {
+            eventLoop().execute(this::abandon);
+            return;
+        }
+        if (abandoned) {
+            return;
+        }
+        abandoned = true;
+        sink = null;
+        for (HttpContent content = held.poll(); content != null; content = held.poll()) {
+            content.release();
+        }
+        ctx.channel().attr(KEY).compareAndSet(this, null);
+        if (!complete && expectsContinue && !continued) {
+            // The client will not send the body unless asked; reset the
+            // decoder, as HttpObjectAggregator does, so the next bytes are
+            // read as a new request
+            complete = true;
+            ctx.pipeline().fireUserEventTriggered(HttpExpectationFailedEvent.INSTANCE);
+        }
+        // Whoever paused reads for this body no longer will resume them
+        paused = false;
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    boolean isStarted() {
+        return sink != null;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    private void onContent(HttpContent content) {
+        boolean last = content instanceof LastHttpContent;
+        if (last) {
+            complete = true;
+        }
+        if (abandoned) {
+            content.release();
+        } else if (sink != null) {
+            sink.onContent(content, last);
+        } else {
+            held.add(content);
+            heldBytes += content.content().readableBytes();
+            if (heldBytes > MAX_HELD_BYTES && !paused) {
+                paused = true;
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+    }
+
+    private FullHttpRequest emptyRequest() {
+        FullHttpRequest request = new DefaultFullHttpRequest(head.protocolVersion(), head.method(),
+                head.uri(), Unpooled.EMPTY_BUFFER);
+        request.headers().set(head.headers());
+        request.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+        request.headers().remove(HttpHeaderNames.EXPECT);
+        HttpUtil.setContentLength(request, 0);
+        return request;
+    }
+
+    /**
+     * Holds back the bodies of requests for routes which stream them, passing
+     * their heads on with an empty body.
+     */
+    static final class Handler extends ChannelDuplexHandler {
+
+        private final PipelineHooks hooks;
+        private StreamedBody current;
+
+        Handler(PipelineHooks hooks) {
+            this.hooks = hooks;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest) {
+                if (current != null) {
+                    current.abandon();
+                    current = null;
+                }
+                HttpRequest request = (HttpRequest) msg;
+                if (!(msg instanceof FullHttpRequest) && hasBody(request) && hooks.streams(request)) {
+                    current = new StreamedBody(ctx, request);
+                    ctx.channel().attr(KEY).set(current);
+                    ctx.fireChannelRead(current.emptyRequest());
+                    return;
+                }
+            } else if (current != null && msg instanceof HttpContent) {
+                StreamedBody body = current;
+                if (msg instanceof LastHttpContent) {
+                    current = null;
+                }
+                body.onContent((HttpContent) msg);
+                return;
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse && current != null && !current.isStarted()) {
+                // Refused, not found, shed - nobody will read the body
+                current.abandon();
+                if (current.isComplete()) {
+                    current = null;
+                }
+            }
+            super.write(ctx, msg, promise);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (current != null) {
+                current.abandon();
+                current = null;
+            }
+            super.channelInactive(ctx);
+        }
+
+        private static boolean hasBody(HttpRequest request) {
+            return HttpUtil.isTransferEncodingChunked(request) || HttpUtil.getContentLength(request, 0L) > 0;
+        }
+    }
+}
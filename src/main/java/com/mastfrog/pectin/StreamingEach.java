@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.mastfrog.pectin.App.EachTypedContent;
+import com.mastfrog.util.thread.NonThrowingAutoCloseable;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpContent;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Parses the body of a <code>postEach()</code> request as it arrives, so
+ * memory use depends on the size of an element rather than of the body. The
+ * body is held back by <code>StreamedBody</code> until the route has been
+ * admitted, so nothing is read from the client or handed to the consumer
+ * before then. Elements decoded from each chunk are handed to the route's
+ * consumer on the app's handler threads, inside the route's deadline, with
+ * reads from the connection paused until it is done with them. The returned
+ * future completes with the outcome, and is cancelled like any other
+ * handler's if the deadline passes or the client goes away, which stops the
+ * consumer at the next element and drops the rest of the body.
+ *
+ * @author Tim Boudreau
+ */
+final class StreamingEach<T> implements StreamedBody.Sink {
+
+    private final StreamedBody body;
+    private final Upload<T> upload;
+    private final Executor executor;
+    private final Deadline deadline;
+    private final CompletableFuture<Object> future = new CompletableFuture<>();
+    // Only touched on the event loop: chunks which arrive while the consumer
+    // is busy with earlier ones
+    private final ArrayDeque<HttpContent> backlog = new ArrayDeque<>();
+    private boolean busy;
+
+    private StreamingEach(StreamedBody body, Upload<T> upload, Executor executor, Deadline deadline) {
+        this.body = body;
+        this.upload = upload;
+        this.executor = executor;
+        this.deadline = deadline;
+    }
+
+    static <T> CompletableFuture<Object> consume(StreamedBody body, EachTypedContent<T> each, ObjectMapper mapper, Executor executor, Deadline deadline) throws Exception {
+        StreamingEach<T> streaming = new StreamingEach<>(body, new Upload<>(each, mapper), executor, deadline);
+        streaming.future.whenComplete((result, thrown) -> {
+            if (streaming.future.isCancelled()) {
+                streaming.upload.cancel();
+                body.eventLoop().execute(streaming::discard);
+                body.abandon();
+            }
+        });
+        body.start(streaming);
+        return streaming.future;
+    }
+
+    @Override
+    public void onContent(HttpContent content, boolean last) {
+        if (future.isDone()) {
+            content.release();
+        } else if (busy) {
+            backlog.add(content);
+        } else {
+            process(content, last);
+        }
+    }
+
+    private void process(HttpContent content, boolean last) {
+        List<Object> elements;
+        try {
+            elements = upload.feed(content.content(), last);
+        } finally {
+            content.release();
+        }
+        if (elements.isEmpty() && !(last && upload.needsFlush())) {
+            if (last) {
+                finish();
+            }
+            return;
+        }
+        busy = true;
+        body.channel().config().setAutoRead(false);
+        try {
+            executor.execute(() -> {
+                try (NonThrowingAutoCloseable ac = deadline.enter()) {
+                    upload.consume(elements, last);
+                }
+                body.eventLoop().execute(() -> resumed(last));
+            });
+        } catch (RejectedExecutionException ex) {
+            // Shutting down
+            future.completeExceptionally(ex);
+            discard();
+            body.abandon();
+        }
+    }
+
+    private void resumed(boolean last) {
+        busy = false;
+        if (future.isDone()) {
+            discard();
+            return;
+        }
+        if (last) {
+            finish();
+            return;
+        }
+        body.channel().config().setAutoRead(true);
+        for (HttpContent content = backlog.poll(); content != null; content = busy ? null : backlog.poll()) {
+            process(content, content instanceof LastHttpContent);
+        }
+    }
+
+    private void discard() {
+        for (HttpContent content = backlog.poll(); content != null; content = backlog.poll()) {
+            content.release();
+        }
+    }
+
+    private void finish() {
+        Object outcome = upload.outcome();
+        if (outcome instanceof Throwable) {
+            future.completeExceptionally((Throwable) outcome);
+        } else {
+            future.complete(outcome);
+        }
+    }
+
+    /**
+     * Parse state for one request body. Feeding happens on the event loop,
+     * consuming on a handler thread, never both at once.
+     */
+    private static final class Upload<T> {
+
+        private final EachTypedContent<T> each;
+        private final ObjectReader reader;
+        private final JsonParser parser;
+        private final ByteArrayFeeder feeder;
+        private TokenBuffer element;
+        private Boolean array;
+        private int depth;
+        private boolean ended;
+        private List<T> pending;
+        private int count;
+        private Throwable failure;
+        private volatile boolean cancelled;
+
+        Upload(EachTypedContent<T> each, ObjectMapper mapper) throws Exception {
+            this.each = each;
+            this.reader = mapper.readerFor(each.type);
+            this.parser = mapper.getFactory().createNonBlockingByteArrayParser();
+            this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean needsFlush() {
+            return pending != null && !pending.isEmpty() && failure == null;
+        }
+
+        /**
+         * Feed a chunk, returning the elements completed by it; after a
+         * failure the rest of the body is only read and dropped.
+         */
+        List<Object> feed(ByteBuf buf, boolean last) {
+            if (failure != null) {
+                return Collections.emptyList();
+            }
+            List<Object> result = new ArrayList<>(4);
+            try {
+                if (buf.isReadable()) {
+                    byte[] bytes = new byte[buf.readableBytes()];
+                    buf.getBytes(buf.readerIndex(), bytes);
+                    feeder.feedInput(bytes, 0, bytes.length);
+                }
+                if (last) {
+                    feeder.endOfInput();
+                }
+                for (JsonToken tok = parser.nextToken(); tok != null && tok != JsonToken.NOT_AVAILABLE; tok = parser.nextToken()) {
+                    if (ended) {
+                        throw new JsonParseException(parser, "Content after the end of the array");
+                    }
+                    if (array == null) {
+                        array = tok == JsonToken.START_ARRAY;
+                        if (array) {
+                            continue;
+                        }
+                    }
+                    if (array && depth == 0 && tok == JsonToken.END_ARRAY) {
+                        ended = true;
+                        continue;
+                    }
+                    if (element == null) {
+                        element = new TokenBuffer(parser);
+                    }
+                    element.copyCurrentEvent(parser);
+                    if (tok.isStructStart()) {
+                        depth++;
+                    } else if (tok.isStructEnd()) {
+                        depth--;
+                    }
+                    if (depth == 0) {
+                        result.add(reader.readValue(element.asParser()));
+                        element = null;
+                    }
+                }
+                if (last && (depth != 0 || (Boolean.TRUE.equals(array) && !ended))) {
+                    throw new JsonParseException(parser, "Body ended inside an element");
+                }
+            } catch (Exception ex) {
+                // Elements parsed before the failure are still consumed
+                failure = ex;
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        void consume(List<Object> elements, boolean last) {
+            try {
+                for (Object o : elements) {
+                    if (cancelled) {
+                        return;
+                    }
+                    T obj = (T) o;
+                    count++;
+                    if (each.batch == null) {
+                        each.each.accept(obj);
+                    } else {
+                        if (pending == null) {
+                            pending = new ArrayList<>(each.batchSize);
+                        }
+                        pending.add(obj);
+                        if (pending.size() == each.batchSize) {
+                            each.batch.accept(pending);
+                            pending = null;
+                        }
+                    }
+                }
+                if (last && needsFlush() && !cancelled) {
+                    each.batch.accept(pending);
+                    pending = null;
+                }
+            } catch (Exception ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+
+        Object outcome() {
+            if (failure instanceof JsonProcessingException) {
+                return BAD_REQUEST;
+            }
+            return failure != null ? failure : count;
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteurbase.Chain;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.pectin.App.Appliable;
+import com.mastfrog.pectin.App.IntPathParameter;
+import com.mastfrog.pectin.App.IntQueryParameter;
+import com.mastfrog.pectin.App.LongPathParameter;
+import com.mastfrog.pectin.App.LongQueryParameter;
+import com.mastfrog.pectin.App.TypedPathParameter;
+import com.mastfrog.pectin.App.TypedQueryParameter;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Handlers which bind a path or query parameter to a typed value. Where the
+ * parameter is and how to parse it are worked out once, when the route is
+ * registered; at request time, int and long values are parsed directly from
+ * the characters of the request URI, without creating Strings or boxing.
+ *
+ * @author Tim Boudreau
+ */
+final class TypedParameters {
+
+    private TypedParameters() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Marker for handlers that read their parameters from the raw URI, so
+     * CheckMethods need not build a map of path parameters for them.
+     */
+    interface UriBound extends Appliable {
+
+    }
+
+    interface Parser<T> {
+
+        T parse(CharSequence uri, int start, int end);
+    }
+
+    static final class IntPath implements UriBound {
+
+        private final IntPathParameter handler;
+        private final int segment;
+
+        IntPath(String template, IntPathParameter handler) {
+            this.handler = handler;
+            this.segment = parameterSegment(template);
+        }
+
+        @Override
+        public Object doApply(HttpEvent evt, Map<String, String> pathParameters, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            String uri = evt.request().uri();
+            long bounds = segment(uri, segment);
+            if (bounds < 0) {
+                return BAD_REQUEST;
+            }
+            int value;
+            try {
+                value = (int) parseLong(uri, start(bounds), end(bounds), Integer.MIN_VALUE, Integer.MAX_VALUE);
+            } catch (NumberFormatException ex) {
+                return BAD_REQUEST;
+            }
+            return handler.apply(value);
+        }
+    }
+
+    static final class LongPath implements UriBound {
+
+        private final LongPathParameter handler;
+        private final int segment;
+
+        LongPath(String template, LongPathParameter handler) {
+            this.handler = handler;
+            this.segment = parameterSegment(template);
+        }
+
+        @Override
+        public Object doApply(HttpEvent evt, Map<String, String> pathParameters, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            String uri = evt.request().uri();
+            long bounds = segment(uri, segment);
+            if (bounds < 0) {
+                return BAD_REQUEST;
+            }
+            long value;
+            try {
+                value = parseLong(uri, start(bounds), end(bounds), Long.MIN_VALUE, Long.MAX_VALUE);
+            } catch (NumberFormatException ex) {
+                return BAD_REQUEST;
+            }
+            return handler.apply(value);
+        }
+    }
+
+    static final class TypedPath<T> implements UriBound {
+
+        private final TypedPathParameter<T> handler;
+        private final Parser<T> parser;
+        private final int segment;
+
+        TypedPath(String template, TypedPathParameter<T> handler, Class<T> type) {
+            this.handler = handler;
+            this.parser = parserFor(type, false);
+            this.segment = parameterSegment(template);
+        }
+
+        @Override
+        public Object doApply(HttpEvent evt, Map<String, String> pathParameters, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            String uri = evt.request().uri();
+            long bounds = segment(uri, segment);
+            if (bounds < 0) {
+                return BAD_REQUEST;
+            }
+            T value;
+            try {
+                value = parser.parse(uri, start(bounds), end(bounds));
+            } catch (IllegalArgumentException ex) {
+                return BAD_REQUEST;
+            }
+            return handler.apply(value);
+        }
+    }
+
+    static final class IntQuery implements UriBound {
+
+        private final IntQueryParameter handler;
+        private final String name;
+
+        IntQuery(String name, IntQueryParameter handler) {
+            this.handler = handler;
+            this.name = name;
+        }
+
+        @Override
+        public Object doApply(HttpEvent evt, Map<String, String> pathParameters, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            String uri = evt.request().uri();
+            long bounds = queryValue(uri, name);
+            if (bounds < 0) {
+                return BAD_REQUEST;
+            }
+            int value;
+            try {
+                value = (int) parseLong(uri, start(bounds), end(bounds), Integer.MIN_VALUE, Integer.MAX_VALUE);
+            } catch (NumberFormatException ex) {
+                return BAD_REQUEST;
+            }
+            return handler.apply(value);
+        }
+    }
+
+    static final class LongQuery implements UriBound {
+
+        private final LongQueryParameter handler;
+        private final String name;
+
+        LongQuery(String name, LongQueryParameter handler) {
+            this.handler = handler;
+            this.name = name;
+        }
+
+        @Override
+        public Object doApply(HttpEvent evt, Map<String, String> pathParameters, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            String uri = evt.request().uri();
+            long bounds = queryValue(uri, name);
+            if (bounds < 0) {
+                return BAD_REQUEST;
+            }
+            long value;
+            try {
+                value = parseLong(uri, start(bounds), end(bounds), Long.MIN_VALUE, Long.MAX_VALUE);
+            } catch (NumberFormatException ex) {
+                return BAD_REQUEST;
+            }
+            return handler.apply(value);
+        }
+    }
+
+    static final class TypedQuery<T> implements UriBound {
+
+        private final TypedQueryParameter<T> handler;
+        private final Parser<T> parser;
+        private final String name;
+
+        TypedQuery(String name, TypedQueryParameter<T> handler, Class<T> type) {
+            this.handler = handler;
+            this.parser = parserFor(type, true);
+            this.name = name;
+        }
+
+        @Override
+        public Object doApply(HttpEvent evt, Map<String, String> pathParameters, Chain<Acteur, ? extends Chain<Acteur, ?>> chain, Dependencies deps) throws Exception {
+            String uri = evt.request().uri();
+            long bounds = queryValue(uri, name);
+            T value = null;
+            if (bounds >= 0) {
+                try {
+                    value = parser.parse(uri, start(bounds), end(bounds));
+                } catch (IllegalArgumentException ex) {
+                    return BAD_REQUEST;
+                }
+            }
+            return handler.apply(value);
+        }
+    }
+
+    /**
+     * Find the index of the first <code>:name</code> element of a route
+     * template, numbered the same way as PathPatterns numbers them.
+     */
+    static int parameterSegment(String template) {
+        String[] parts = (template.length() > 0 && template.charAt(0) == '/' ? template.substring(1) : template).split("/");
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].length() > 0 && parts[i].charAt(0) == ':') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No path parameter in " + template);
+    }
+
+    static int start(long bounds) {
+        return (int) (bounds >>> 32);
+    }
+
+    static int end(long bounds) {
+        return (int) bounds;
+    }
+
+    private static long bounds(int start, int end) {
+        return ((long) start << 32) | end;
+    }
+
+    /**
+     * Get the path of a request URI, without its query or fragment, or the
+     * scheme and authority of an absolute-form request target, or a leading
+     * slash.
+     */
+    static String requestPath(CharSequence uri) {
+        int start = pathStart(uri);
+        int end = pathEnd(uri);
+        return start >= end ? "" : uri.subSequence(start, end).toString();
+    }
+
+    private static int pathStart(CharSequence uri) {
+        if (uri.length() > 0 && uri.charAt(0) == '/') {
+            return 1;
+        }
+        // absolute-form request target - skip the scheme and authority
+        for (int i = 0, slashes = 0; i < uri.length(); i++) {
+            if (uri.charAt(i) == '/' && ++slashes == 3) {
+                return i + 1;
+            }
+        }
+        return uri.length();
+    }
+
+    private static int pathEnd(CharSequence uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return uri.length();
+    }
+
+    /**
+     * Get the start and end of a path element packed into a long, or -1 if
+     * the path has too few elements.
+     */
+    static long segment(CharSequence uri, int index) {
+        int end = pathEnd(uri);
+        int start = pathStart(uri);
+        for (int i = 0; i < index; i++) {
+            while (start < end && uri.charAt(start) != '/') {
+                start++;
+            }
+            if (start >= end) {
+                return -1;
+            }
+            start++;
+        }
+        int segEnd = start;
+        while (segEnd < end && uri.charAt(segEnd) != '/') {
+            segEnd++;
+        }
+        return bounds(start, segEnd);
+    }
+
+    /**
+     * Get the start and end of the (still encoded) value of a query
+     * parameter packed into a long, or -1 if it is not present.
+     */
+    static long queryValue(CharSequence uri, String name) {
+        int len = uri.length();
+        int pos = pathEnd(uri);
+        if (pos >= len || uri.charAt(pos) != '?') {
+            return -1;
+        }
+        pos++;
+        while (pos < len) {
+            int pairEnd = pos;
+            while (pairEnd < len && uri.charAt(pairEnd) != '&' && uri.charAt(pairEnd) != '#') {
+                pairEnd++;
+            }
+            if (pairEnd - pos > name.length() && uri.charAt(pos + name.length()) == '='
+                    && regionMatches(uri, pos, name)) {
+                return bounds(pos + name.length() + 1, pairEnd);
+            }
+            if (pairEnd >= len || uri.charAt(pairEnd) == '#') {
+                break;
+            }
+            pos = pairEnd + 1;
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence uri, int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (uri.charAt(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long parseLong(CharSequence seq, int start, int end, long min, long max) {
+        if (start >= end) {
+            throw new NumberFormatException("Empty number");
+        }
+        boolean negative = seq.charAt(start) == '-';
+        int pos = negative || seq.charAt(start) == '+' ? start + 1 : start;
+        if (pos == end) {
+            throw new NumberFormatException("No digits");
+        }
+        // Accumulate negatively, since Long.MIN_VALUE has no positive twin
+        long limit = negative ? min : -max;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; pos < end; pos++) {
+            int digit = seq.charAt(pos) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a digit: '" + seq.charAt(pos) + "'");
+            }
+            if (result < multmin) {
+                throw new NumberFormatException("Out of range");
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("Out of range");
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    static boolean parseBoolean(String value) {
+        // Boolean.valueOf() would quietly turn anything else into false
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Not a boolean: '" + value + "'");
+    }
+
+    static String decode(CharSequence uri, int start, int end, boolean query) {
+        String raw = uri.subSequence(start, end).toString();
+        if (raw.indexOf('%') < 0 && (!query || raw.indexOf('+') < 0)) {
+            return raw;
+        }
+        // '+' only means space in a query string
+        return QueryStringDecoder.decodeComponent(query ? raw : raw.replace("+", "%2B"));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static <T> Parser<T> parserFor(Class<T> type, boolean query) {
+        if (type == String.class || type == CharSequence.class) {
+            return (Parser<T>) (Parser<String>) (uri, start, end) -> decode(uri, start, end, query);
+        } else if (type == Integer.class || type == Integer.TYPE) {
+            return (Parser<T>) (Parser<Integer>) (uri, start, end) -> (int) parseLong(uri, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        } else if (type == Long.class || type == Long.TYPE) {
+            return (Parser<T>) (Parser<Long>) (uri, start, end) -> parseLong(uri, start, end, Long.MIN_VALUE, Long.MAX_VALUE);
+        } else if (type == Short.class || type == Short.TYPE) {
+            return (Parser<T>) (Parser<Short>) (uri, start, end) -> (short) parseLong(uri, start, end, Short.MIN_VALUE, Short.MAX_VALUE);
+        } else if (type == Boolean.class || type == Boolean.TYPE) {
+            return (Parser<T>) (Parser<Boolean>) (uri, start, end) -> parseBoolean(decode(uri, start, end, query));
+        } else if (type == Double.class || type == Double.TYPE) {
+            return (Parser<T>) (Parser<Double>) (uri, start, end) -> Double.valueOf(decode(uri, start, end, query));
+        } else if (type == Float.class || type == Float.TYPE) {
+            return (Parser<T>) (Parser<Float>) (uri, start, end) -> Float.valueOf(decode(uri, start, end, query));
+        } else if (type == UUID.class) {
+            return (Parser<T>) (Parser<UUID>) (uri, start, end) -> UUID.fromString(decode(uri, start, end, query));
+        } else if (type.isEnum()) {
+            return (uri, start, end) -> (T) Enum.valueOf((Class) type, decode(uri, start, end, query));
+        }
+        return reflectiveParser(type, query);
+    }
+
+    private static <T> Parser<T> reflectiveParser(Class<T> type, boolean query) {
+        for (String name : new String[]{"valueOf", "parse", "fromString", "of"}) {
+            try {
+                Method m = type.getMethod(name, String.class);
+                if (Modifier.isStatic(m.getModifiers()) && type.isAssignableFrom(m.getReturnType())) {
+                    return (uri, start, end) -> invoke(() -> type.cast(m.invoke(null, decode(uri, start, end, query))));
+                }
+            } catch (NoSuchMethodException ex) {
+                // try the next one
+            }
+        }
+        try {
+            Constructor<T> con = type.getConstructor(String.class);
+            return (uri, start, end) -> invoke(() -> con.newInstance(decode(uri, start, end, query)));
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException("Don't know how to convert a String to a " + type.getName(), ex);
+        }
+    }
+
+    private interface Reflective<T> {
+
+        T get() throws ReflectiveOperationException;
+    }
+
+    private static <T> T invoke(Reflective<T> call) {
+        try {
+            return call.get();
+        } catch (ReflectiveOperationException ex) {
+            // Surfaces as a 400, like any other unparseable value
+            throw new IllegalArgumentException(ex.getCause() == null ? ex : ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.pectin;
+
+import static com.mastfrog.pectin.TypedParameters.end;
+import static com.mastfrog.pectin.TypedParameters.parseLong;
+import static com.mastfrog.pectin.TypedParameters.queryValue;
+import static com.mastfrog.pectin.TypedParameters.segment;
+import static com.mastfrog.pectin.TypedParameters.start;
+
+/**
+ * Runnable check of the URI scanning and number parsing behind typed
+ * parameters; exits with an AssertionError on the first failure.
+ *
+ * @author Tim Boudreau
+ */
+public class TypedParametersCheck {
+
+    public static void main(String[] args) {
+        checkParse("0", Long.MIN_VALUE, Long.MAX_VALUE, 0L);
+        checkParse("+17", Long.MIN_VALUE, Long.MAX_VALUE, 17L);
+        checkParse("-17", Long.MIN_VALUE, Long.MAX_VALUE, -17L);
+        checkParse("9223372036854775807", Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        checkParse("-9223372036854775808", Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE);
+        checkParse("2147483647", Integer.MIN_VALUE, Integer.MAX_VALUE, (long) Integer.MAX_VALUE);
+        checkParse("-2147483648", Integer.MIN_VALUE, Integer.MAX_VALUE, (long) Integer.MIN_VALUE);
+        checkUnparseable("9223372036854775808", Long.MIN_VALUE, Long.MAX_VALUE);
+        checkUnparseable("-9223372036854775809", Long.MIN_VALUE, Long.MAX_VALUE);
+        checkUnparseable("99999999999999999999", Long.MIN_VALUE, Long.MAX_VALUE);
+        checkUnparseable("2147483648", Integer.MIN_VALUE, Integer.MAX_VALUE);
+        checkUnparseable("-2147483649", Integer.MIN_VALUE, Integer.MAX_VALUE);
+        checkUnparseable("", Long.MIN_VALUE, Long.MAX_VALUE);
+        checkUnparseable("-", Long.MIN_VALUE, Long.MAX_VALUE);
+        checkUnparseable("+", Long.MIN_VALUE, Long.MAX_VALUE);
+        checkUnparseable("12a", Long.MIN_VALUE, Long.MAX_VALUE);
+        checkUnparseable(" 12", Long.MIN_VALUE, Long.MAX_VALUE);
+
+        checkSegment("/users/42", 1, "42");
+        checkSegment("/users/42/", 1, "42");
+        checkSegment("/users/42?verbose=true", 1, "42");
+        checkSegment("/users/42#top", 1, "42");
+        checkSegment("/users//42", 2, "42");
+        checkSegment("/users", 1, null);
+        checkSegment("/users?id=/x/y", 1, null);
+        checkSegment("http://example.com/users/42", 0, "users");
+        checkSegment("http://example.com:8080/users/42?x=1", 1, "42");
+        checkSegment("http://example.com", 1, null);
+
+        checkQuery("/users?limit=5", "limit", "5");
+        checkQuery("/users?a=1&limit=5&b=2", "limit", "5");
+        checkQuery("/users?limit=", "limit", "");
+        checkQuery("/users?limit=5#frag", "limit", "5");
+        checkQuery("/users?limitx=5", "limit", null);
+        checkQuery("/users?xlimit=5", "limit", null);
+        checkQuery("/users?limit", "limit", null);
+        checkQuery("/users#?limit=5", "limit", null);
+        checkQuery("/users?a=1#&limit=5", "limit", null);
+        checkQuery("/users", "limit", null);
+        checkQuery("http://example.com/users?limit=5", "limit", "5");
+        checkQuery("http://example.com?limit=5", "limit", "5");
+
+        check(TypedParameters.parseBoolean("true"), "true");
+        check(TypedParameters.parseBoolean("TRUE"), "TRUE");
+        check(!TypedParameters.parseBoolean("False"), "False");
+        for (String bad : new String[]{"", "garbage", "yes", "1", "truex"}) {
+            try {
+                TypedParameters.parseBoolean(bad);
+                throw new AssertionError("parseBoolean('" + bad + "') should fail");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+
+        checkRequestPath("/upload", "upload");
+        checkRequestPath("/users/42?x=1#y", "users/42");
+        checkRequestPath("http://example.com/upload", "upload");
+        checkRequestPath("http://example.com:8080/a/b?c=/d", "a/b");
+        checkRequestPath("http://example.com", "");
+        checkRequestPath("http://example.com?x=1", "");
+        checkRequestPath("/", "");
+
+        checkParameterSegment("users/:id", 1);
+        checkParameterSegment("/users/:id/posts", 1);
+        checkParameterSegment(":id", 0);
+        System.out.println("ok");
+    }
+
+    private static void checkParse(String s, long min, long max, long expect) {
+        String padded = "/x/" + s + "/y";
+        long got = parseLong(padded, 3, 3 + s.length(), min, max);
+        check(got == expect, "parseLong(" + s + ") gave " + got + " not " + expect);
+    }
+
+    private static void checkUnparseable(String s, long min, long max) {
+        try {
+            long got = parseLong(s, 0, s.length(), min, max);
+            throw new AssertionError("parseLong('" + s + "') should fail but gave " + got);
+        } catch (NumberFormatException ex) {
+            // expected
+        }
+    }
+
+    private static void checkSegment(String uri, int index, String expect) {
+        String got = substring(uri, segment(uri, index));
+        check(expect == null ? got == null || got.isEmpty() : expect.equals(got),
+                "Segment " + index + " of " + uri + " is '" + got + "' not '" + expect + "'");
+    }
+
+    private static void checkQuery(String uri, String name, String expect) {
+        String got = substring(uri, queryValue(uri, name));
+        check(expect == null ? got == null : expect.equals(got),
+                "Query parameter " + name + " of " + uri + " is '" + got + "' not '" + expect + "'");
+    }
+
+    private static void checkRequestPath(String uri, String expect) {
+        String got = TypedParameters.requestPath(uri);
+        check(expect.equals(got), "Path of " + uri + " is '" + got + "' not '" + expect + "'");
+    }
+
+    private static void checkParameterSegment(String template, int expect) {
+        int got = TypedParameters.parameterSegment(template);
+        check(got == expect, "Parameter of " + template + " is element " + got + " not " + expect);
+    }
+
+    private static String substring(String uri, long bounds) {
+        return bounds == -1 ? null : uri.substring(start(bounds), end(bounds));
+    }
+
+    private static void check(boolean test, String msg) {
+        if (!test) {
+            throw new AssertionError(msg);
+        }
+    }
+}